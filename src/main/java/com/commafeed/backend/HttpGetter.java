@@ -1,10 +1,24 @@
 package com.commafeed.backend;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -17,30 +31,69 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.DecompressingHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.AsyncSchemeRegistryFactory;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.ClientAsyncConnectionManager;
+import org.apache.http.nio.conn.scheme.AsyncScheme;
+import org.apache.http.nio.conn.scheme.AsyncSchemeRegistry;
+import org.apache.http.nio.conn.ssl.SSLLayeringStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.commafeed.backend.services.ApplicationSettingsService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+@Singleton
 public class HttpGetter {
 
 	private static Logger log = LoggerFactory.getLogger(HttpGetter.class);
@@ -59,6 +112,128 @@ public class HttpGetter {
 
 	private static final X509HostnameVerifier VERIFIER = new DefaultHostnameVerifier();
 
+	private static final int TIMEOUT = 4000;
+
+	/**
+	 * connections to a single host, most feeds hosted on the same platform
+	 * (feedburner, blogspot, ...) share a route
+	 */
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 5;
+
+	/**
+	 * connections on top of the background threads, for user-initiated
+	 * fetches and pubsubhubbub requests
+	 */
+	private static final int EXTRA_CONNECTIONS = 20;
+
+	private static final int IDLE_CONNECTION_SECONDS = 60;
+
+	/**
+	 * connections of the non-blocking client used by the refresh pipeline
+	 */
+	private static final int ASYNC_MAX_CONNECTIONS = 1000;
+
+	/**
+	 * requests of the non-blocking client may wait for a connection to a busy
+	 * host for that long before failing
+	 */
+	private static final int ASYNC_LEASE_TIMEOUT = 60000;
+
+	private static final int DEFAULT_MAX_CONTENT_SIZE = 5 * 1024 * 1024;
+
+	private static final int SC_PERMANENT_REDIRECT = 308;
+
+	/**
+	 * context attributes used to find the location reached through permanent
+	 * redirects only
+	 */
+	private static final String PERMANENT_LOCATION = "commafeed.permanent-location";
+	private static final String TEMPORARY_REDIRECT = "commafeed.temporary-redirect";
+
+	/**
+	 * content types that can't be a feed, the download is aborted as soon as
+	 * the headers are received
+	 */
+	private static final List<String> REJECTED_CONTENT_TYPES = Arrays.asList(
+			"image/", "audio/", "video/", "application/pdf",
+			"application/zip", "application/x-shockwave-flash");
+
+	@Inject
+	ApplicationSettingsService applicationSettingsService;
+
+	private InstrumentedConnectionManager connectionManager;
+	private HttpClient client;
+	private PoolingClientAsyncConnectionManager asyncConnectionManager;
+	private DefaultHttpAsyncClient asyncClient;
+	private ScheduledExecutorService idleConnectionEvictor;
+
+	@PostConstruct
+	public void init() {
+		int threads = Math.max(applicationSettingsService.get()
+				.getBackgroundThreads(), 1);
+
+		SchemeRegistry sr = SchemeRegistryFactory.createSystemDefault();
+		sr.register(new Scheme("https", 443, new SSLSocketFactory(
+				SSL_CONTEXT, VERIFIER)));
+		connectionManager = new InstrumentedConnectionManager(sr);
+		connectionManager.setMaxTotal(threads + EXTRA_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		log.info("Creating http connection pool with {} connections",
+				connectionManager.getMaxTotal());
+
+		client = newClient(connectionManager);
+
+		try {
+			IOReactorConfig config = new IOReactorConfig();
+			config.setConnectTimeout(TIMEOUT);
+			config.setSoTimeout(TIMEOUT);
+			DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(
+					config, new ThreadFactoryBuilder().setNameFormat(
+							"http-io-%d").build());
+			AsyncSchemeRegistry asr = AsyncSchemeRegistryFactory
+					.createDefault();
+			asr.register(new AsyncScheme("https", 443,
+					new SSLLayeringStrategy(SSL_CONTEXT, VERIFIER)));
+			asyncConnectionManager = new PoolingClientAsyncConnectionManager(
+					ioReactor, asr);
+		} catch (IOReactorException e) {
+			throw new IllegalStateException(
+					"Could not create the http I/O reactor", e);
+		}
+		asyncConnectionManager.setMaxTotal(ASYNC_MAX_CONNECTIONS);
+		asyncConnectionManager
+				.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		asyncClient = newAsyncClient(asyncConnectionManager);
+		asyncClient.start();
+
+		idleConnectionEvictor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+						.setNameFormat("http-idle-connection-evictor")
+						.setDaemon(true).build());
+		idleConnectionEvictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(IDLE_CONNECTION_SECONDS,
+						TimeUnit.SECONDS);
+				asyncConnectionManager.closeExpiredConnections();
+				asyncConnectionManager.closeIdleConnections(
+						IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+			}
+		}, IDLE_CONNECTION_SECONDS, IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		idleConnectionEvictor.shutdownNow();
+		connectionManager.shutdown();
+		try {
+			asyncClient.shutdown();
+		} catch (InterruptedException e) {
+			log.error("interrupted while shutting down the http client");
+		}
+	}
+
 	public HttpResult getBinary(String url) throws ClientProtocolException,
 			IOException, NotModifiedException {
 		return getBinary(url, null, null);
@@ -80,74 +255,306 @@ public class HttpGetter {
 	 */
 	public HttpResult getBinary(String url, String lastModified, String eTag)
 			throws ClientProtocolException, IOException, NotModifiedException {
-		HttpResult result = null;
 		long start = System.currentTimeMillis();
 
-		HttpClient client = newClient();
+		HttpGet httpget = newRequest(url, lastModified, eTag);
+		HttpContext context = new BasicHttpContext();
 		try {
-			HttpGet httpget = new HttpGet(url);
-			httpget.addHeader(HttpHeaders.ACCEPT_LANGUAGE, "en");
-			httpget.addHeader(HttpHeaders.PRAGMA, "No-cache");
-			httpget.addHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
-			httpget.addHeader(HttpHeaders.USER_AGENT,
-					"CommaFeed/1.0 (http://www.commafeed.com)");
-
-			if (lastModified != null) {
-				httpget.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
-			}
-			if (eTag != null) {
-				httpget.addHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+			HttpResponse response = client.execute(httpget, context);
+			checkResponse(response, lastModified, eTag, context);
+
+			byte[] content = null;
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				ContentBuffer buffer = newBuffer(entity);
+				InputStream is = entity.getContent();
+				try {
+					buffer.readFrom(is);
+				} finally {
+					is.close();
+				}
+				content = buffer.getContent();
 			}
+			return toResult(response, content, start, context);
+		} finally {
+			// returns the connection to the pool, or closes it if the response
+			// has not been fully consumed
+			httpget.releaseConnection();
+		}
+	}
 
-			HttpResponse response = null;
-			try {
-				response = client.execute(httpget);
-				int code = response.getStatusLine().getStatusCode();
-				if (code == HttpStatus.SC_NOT_MODIFIED) {
-					throw new NotModifiedException();
-				} else if (code >= 300) {
-					throw new HttpResponseException(code,
-							"Server returned HTTP error code " + code);
+	/**
+	 * Same as {@link #getBinary(String, String, String)} but does not block,
+	 * the request is handled by the non-blocking client. The returned future
+	 * fails with a {@link NotModifiedException} if the url hasn't changed
+	 * since we asked for it last time.
+	 */
+	public ListenableFuture<HttpResult> getBinaryAsync(String url,
+			String lastModified, String eTag) {
+		long start = System.currentTimeMillis();
+		final SettableFuture<HttpResult> future = SettableFuture.create();
+
+		HttpGet httpget = newRequest(url, lastModified, eTag);
+		httpget.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+		asyncClient.execute(HttpAsyncMethods.create(httpget),
+				new CappedResponseConsumer(lastModified, eTag, start),
+				new BasicHttpContext(), new FutureCallback<HttpResult>() {
+					@Override
+					public void completed(HttpResult result) {
+						future.set(result);
+					}
+
+					@Override
+					public void failed(Exception e) {
+						future.setException(e);
+					}
+
+					@Override
+					public void cancelled() {
+						future.cancel(false);
+					}
+				});
+		return future;
+	}
+
+	private HttpGet newRequest(String url, String lastModified, String eTag) {
+		HttpGet httpget = new HttpGet(url);
+		httpget.addHeader(HttpHeaders.ACCEPT_LANGUAGE, "en");
+		httpget.addHeader(HttpHeaders.PRAGMA, "No-cache");
+		httpget.addHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+		httpget.addHeader(HttpHeaders.USER_AGENT,
+				"CommaFeed/1.0 (http://www.commafeed.com)");
+
+		if (lastModified != null) {
+			httpget.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+		}
+		if (eTag != null) {
+			httpget.addHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+		}
+		return httpget;
+	}
+
+	private void checkResponse(HttpResponse response, String lastModified,
+			String eTag, HttpContext context) throws IOException,
+			NotModifiedException {
+		int code = response.getStatusLine().getStatusCode();
+		if (code == HttpStatus.SC_NOT_MODIFIED) {
+			throw new NotModifiedException(getPermanentRedirect(context));
+		} else if (code >= 300) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			throw new HttpResponseException(code,
+					"Server returned HTTP error code " + code);
+		}
+
+		if (isNotModified(response, lastModified, eTag)) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			throw new NotModifiedException(getPermanentRedirect(context));
+		}
+	}
+
+	/**
+	 * some servers ignore conditional requests but send the same headers
+	 */
+	private boolean isNotModified(HttpResponse response, String lastModified,
+			String eTag) {
+		String lastModifiedResponse = getHeader(response,
+				HttpHeaders.LAST_MODIFIED);
+		if (lastModified != null
+				&& StringUtils.equals(lastModified, lastModifiedResponse)) {
+			return true;
+		}
+		String eTagResponse = getHeader(response, HttpHeaders.ETAG);
+		return eTag != null && StringUtils.equals(eTag, eTagResponse);
+	}
+
+	private HttpResult toResult(HttpResponse response, byte[] content,
+			long start, HttpContext context) {
+		long duration = System.currentTimeMillis() - start;
+		HttpResult result = new HttpResult(content, getHeader(response,
+				HttpHeaders.LAST_MODIFIED), getHeader(response,
+				HttpHeaders.ETAG), duration);
+		result.setPermanentRedirect(getPermanentRedirect(context));
+		result.setContentType(getHeader(response, HttpHeaders.CONTENT_TYPE));
+		return result;
+	}
+
+	/**
+	 * Returns the final location if it was reached through permanent
+	 * redirects only, or null
+	 */
+	private static String getPermanentRedirect(HttpContext context) {
+		if (context.getAttribute(TEMPORARY_REDIRECT) != null) {
+			return null;
+		}
+		return (String) context.getAttribute(PERMANENT_LOCATION);
+	}
+
+	private String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	/**
+	 * Rejects content that can't be a feed or is too large before reading it
+	 */
+	private ContentBuffer newBuffer(HttpEntity entity) throws IOException {
+		Header contentType = entity.getContentType();
+		if (contentType != null) {
+			String type = StringUtils.lowerCase(contentType.getValue());
+			for (String rejected : REJECTED_CONTENT_TYPES) {
+				if (type.startsWith(rejected)) {
+					throw new IOException("Content type is not a feed : "
+							+ contentType.getValue());
 				}
+			}
+		}
+		int max = getMaxContentSize();
+		long length = entity.getContentLength();
+		if (length > max) {
+			throw new IOException("Content is too large : " + length
+					+ " bytes");
+		}
+		return new ContentBuffer(max, length);
+	}
+
+	private int getMaxContentSize() {
+		int kb = applicationSettingsService.get().getMaxFeedSize();
+		return kb > 0 ? kb * 1024 : DEFAULT_MAX_CONTENT_SIZE;
+	}
+
+	/**
+	 * Byte buffer growing up to a maximum size, the exact size of the content
+	 * is allocated upfront when known so that no copy is needed at the end
+	 */
+	private static class ContentBuffer extends ByteArrayOutputStream {
+
+		private final int max;
+
+		public ContentBuffer(int max, long expected) {
+			super(expected > 0 ? (int) Math.min(expected, max) : 8192);
+			this.max = max;
+		}
+
+		public void append(byte[] b, int off, int len) throws IOException {
+			if (count + len > max) {
+				throw new IOException("Content is larger than " + max
+						+ " bytes, aborting");
+			}
+			write(b, off, len);
+		}
+
+		public void readFrom(InputStream is) throws IOException {
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = is.read(chunk)) != -1) {
+				append(chunk, 0, n);
+			}
+		}
+
+		public byte[] getContent() {
+			return count == buf.length ? buf : Arrays.copyOf(buf, count);
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Streams the body into a buffer bounded by the maximum content size, the
+	 * exchange is aborted as soon as the limit is exceeded or the headers show
+	 * that the content can't be a feed. The non-blocking client does not
+	 * handle content encoding by itself, the content is decompressed here.
+	 */
+	private class CappedResponseConsumer extends
+			AbstractAsyncResponseConsumer<HttpResult> {
+
+		private final String lastModified;
+		private final String eTag;
+		private final long start;
+		private final ByteBuffer chunk = ByteBuffer.allocate(8192);
+
+		private HttpResponse response;
+		private ContentBuffer buffer;
 
-			} catch (HttpResponseException e) {
-				if (e.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
-					throw new NotModifiedException();
-				} else {
-					throw e;
+		public CappedResponseConsumer(String lastModified, String eTag,
+				long start) {
+			this.lastModified = lastModified;
+			this.eTag = eTag;
+			this.start = start;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity,
+				ContentType contentType) throws IOException {
+			int code = response.getStatusLine().getStatusCode();
+			if (code < 300 && !isNotModified(response, lastModified, eTag)) {
+				buffer = newBuffer(entity);
+			}
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder,
+				IOControl ioctrl) throws IOException {
+			int n;
+			while ((n = decoder.read(chunk)) > 0) {
+				// content we don't need is read and dropped
+				if (buffer != null) {
+					buffer.append(chunk.array(), 0, n);
 				}
+				chunk.clear();
 			}
-			Header lastModifiedHeader = response
-					.getFirstHeader(HttpHeaders.LAST_MODIFIED);
-			Header eTagHeader = response.getFirstHeader(HttpHeaders.ETAG);
-
-			String lastModifiedResponse = lastModifiedHeader == null ? null
-					: lastModifiedHeader.getValue();
-			if (lastModified != null
-					&& StringUtils.equals(lastModified, lastModifiedResponse)) {
-				throw new NotModifiedException();
+		}
+
+		@Override
+		protected HttpResult buildResult(HttpContext context)
+				throws Exception {
+			checkResponse(response, lastModified, eTag, context);
+			byte[] content = null;
+			if (buffer != null) {
+				content = decompress(response.getEntity(), buffer);
 			}
+			return toResult(response, content, start, context);
+		}
 
-			String eTagResponse = eTagHeader == null ? null : eTagHeader
+		private byte[] decompress(HttpEntity entity, ContentBuffer raw)
+				throws IOException {
+			Header encodingHeader = entity.getContentEncoding();
+			String encoding = encodingHeader == null ? null : encodingHeader
 					.getValue();
-			if (eTag != null && StringUtils.equals(eTag, eTagResponse)) {
-				throw new NotModifiedException();
+
+			HttpEntity decompressing = null;
+			if (StringUtils.containsIgnoreCase(encoding, "gzip")) {
+				decompressing = new GzipDecompressingEntity(
+						new InputStreamEntity(raw.getInputStream(), -1));
+			} else if (StringUtils.containsIgnoreCase(encoding, "deflate")) {
+				decompressing = new DeflateDecompressingEntity(
+						new InputStreamEntity(raw.getInputStream(), -1));
+			} else {
+				return raw.getContent();
 			}
 
-			HttpEntity entity = response.getEntity();
-			byte[] content = null;
-			if (entity != null) {
-				content = EntityUtils.toByteArray(entity);
+			ContentBuffer decompressed = new ContentBuffer(
+					getMaxContentSize(), -1);
+			InputStream is = decompressing.getContent();
+			try {
+				decompressed.readFrom(is);
+			} finally {
+				is.close();
 			}
+			return decompressed.getContent();
+		}
 
-			long duration = System.currentTimeMillis() - start;
-			result = new HttpResult(content, lastModifiedHeader == null ? null
-					: lastModifiedHeader.getValue(), eTagHeader == null ? null
-					: eTagHeader.getValue(), duration);
-		} finally {
-			client.getConnectionManager().shutdown();
+		@Override
+		protected void releaseResources() {
+			response = null;
+			buffer = null;
 		}
-		return result;
 	}
 
 	public static class HttpResult {
@@ -156,6 +563,8 @@ public class HttpGetter {
 		private String lastModifiedSince;
 		private String eTag;
 		private long duration;
+		private String permanentRedirect;
+		private String contentType;
 
 		public HttpResult(byte[] content, String lastModifiedSince,
 				String eTag, long duration) {
@@ -181,29 +590,268 @@ public class HttpGetter {
 			return duration;
 		}
 
+		/**
+		 * the url we were permanently redirected to, if any
+		 */
+		public String getPermanentRedirect() {
+			return permanentRedirect;
+		}
+
+		public void setPermanentRedirect(String permanentRedirect) {
+			this.permanentRedirect = permanentRedirect;
+		}
+
+		/**
+		 * the Content-Type header of the response, with its charset if any
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		public void setContentType(String contentType) {
+			this.contentType = contentType;
+		}
+
+	}
+
+	/**
+	 * The shared client, backed by the connection pool. Requests executed with
+	 * this client must release their connection when done.
+	 */
+	public HttpClient getClient() {
+		return client;
+	}
+
+	public PoolStatistics getPoolStatistics() {
+		return connectionManager.getStatistics();
+	}
+
+	public PoolStats getAsyncPoolStatistics() {
+		return asyncConnectionManager.getTotalStats();
 	}
 
-	public static HttpClient newClient() {
-		DefaultHttpClient client = new SystemDefaultHttpClient();
+	/**
+	 * Maximum number of requests the non-blocking client can have in flight
+	 */
+	public int getAsyncMaxConnections() {
+		return ASYNC_MAX_CONNECTIONS;
+	}
 
-		SSLSocketFactory ssf = new SSLSocketFactory(SSL_CONTEXT, VERIFIER);
-		ClientConnectionManager ccm = client.getConnectionManager();
-		SchemeRegistry sr = ccm.getSchemeRegistry();
-		sr.register(new Scheme("https", 443, ssf));
+	private static HttpClient newClient(final ClientConnectionManager ccm) {
+		// keep the proxy settings from system properties
+		DefaultHttpClient client = new SystemDefaultHttpClient() {
+			@Override
+			protected ClientConnectionManager createClientConnectionManager() {
+				return ccm;
+			}
+		};
 
 		HttpParams params = client.getParams();
 		HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
 		HttpProtocolParams.setContentCharset(params, "UTF-8");
-		HttpConnectionParams.setConnectionTimeout(params, 4000);
-		HttpConnectionParams.setSoTimeout(params, 4000);
+		HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, TIMEOUT);
 		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0,
 				false));
+		client.setRedirectStrategy(new PermanentRedirectStrategy());
 		return new DecompressingHttpClient(client);
 	}
 
+	private static DefaultHttpAsyncClient newAsyncClient(
+			ClientAsyncConnectionManager ccm) {
+		DefaultHttpAsyncClient client = new DefaultHttpAsyncClient(ccm);
+
+		HttpParams params = client.getParams();
+		HttpClientParams.setCookiePolicy(params, CookiePolicy.IGNORE_COOKIES);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT,
+				ASYNC_LEASE_TIMEOUT);
+		client.setRedirectStrategy(new PermanentRedirectStrategy());
+		return client;
+	}
+
+	/**
+	 * Pooling connection manager keeping track of the time spent waiting for
+	 * a connection
+	 */
+	private static class InstrumentedConnectionManager extends
+			PoolingClientConnectionManager {
+
+		private AtomicLong leases = new AtomicLong();
+		private AtomicLong totalWait = new AtomicLong();
+		private AtomicLong maxWait = new AtomicLong();
+
+		public InstrumentedConnectionManager(SchemeRegistry sr) {
+			super(sr);
+		}
+
+		@Override
+		public ClientConnectionRequest requestConnection(HttpRoute route,
+				Object state) {
+			final ClientConnectionRequest request = super.requestConnection(
+					route, state);
+			return new ClientConnectionRequest() {
+				@Override
+				public ManagedClientConnection getConnection(long timeout,
+						TimeUnit tunit) throws InterruptedException,
+						ConnectionPoolTimeoutException {
+					long start = System.currentTimeMillis();
+					try {
+						return request.getConnection(timeout, tunit);
+					} finally {
+						leased(System.currentTimeMillis() - start);
+					}
+				}
+
+				@Override
+				public void abortRequest() {
+					request.abortRequest();
+				}
+			};
+		}
+
+		private void leased(long wait) {
+			leases.incrementAndGet();
+			totalWait.addAndGet(wait);
+			long max = maxWait.get();
+			while (wait > max && !maxWait.compareAndSet(max, wait)) {
+				max = maxWait.get();
+			}
+		}
+
+		public PoolStatistics getStatistics() {
+			PoolStats stats = getTotalStats();
+			long count = leases.get();
+			return new PoolStatistics(stats.getLeased(), stats.getPending(),
+					stats.getAvailable(), stats.getMax(), count,
+					count == 0 ? 0 : totalWait.get() / count, maxWait.get());
+		}
+	}
+
+	public static class PoolStatistics {
+
+		private int leased;
+		private int pending;
+		private int available;
+		private int max;
+		private long leases;
+		private long averageWait;
+		private long maxWait;
+
+		public PoolStatistics(int leased, int pending, int available,
+				int max, long leases, long averageWait, long maxWait) {
+			this.leased = leased;
+			this.pending = pending;
+			this.available = available;
+			this.max = max;
+			this.leases = leases;
+			this.averageWait = averageWait;
+			this.maxWait = maxWait;
+		}
+
+		/**
+		 * connections currently in use
+		 */
+		public int getLeased() {
+			return leased;
+		}
+
+		/**
+		 * requests waiting for a connection
+		 */
+		public int getPending() {
+			return pending;
+		}
+
+		/**
+		 * idle connections kept alive in the pool
+		 */
+		public int getAvailable() {
+			return available;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		/**
+		 * connections handed out since startup
+		 */
+		public long getLeases() {
+			return leases;
+		}
+
+		/**
+		 * average time in milliseconds spent waiting for a connection
+		 */
+		public long getAverageWait() {
+			return averageWait;
+		}
+
+		public long getMaxWait() {
+			return maxWait;
+		}
+	}
+
 	public static class NotModifiedException extends Exception {
 		private static final long serialVersionUID = 1L;
 
+		private String permanentRedirect;
+
+		public NotModifiedException() {
+		}
+
+		public NotModifiedException(String permanentRedirect) {
+			this.permanentRedirect = permanentRedirect;
+		}
+
+		/**
+		 * the url we were permanently redirected to, if any
+		 */
+		public String getPermanentRedirect() {
+			return permanentRedirect;
+		}
+
+	}
+
+	/**
+	 * Follows 308 redirects too, and keeps track in the context of the
+	 * location reached through permanent redirects
+	 */
+	private static class PermanentRedirectStrategy extends
+			DefaultRedirectStrategy {
+
+		@Override
+		public boolean isRedirected(HttpRequest request,
+				HttpResponse response, HttpContext context)
+				throws ProtocolException {
+			int code = response.getStatusLine().getStatusCode();
+			if (code == SC_PERMANENT_REDIRECT) {
+				return isRedirectable(request.getRequestLine().getMethod())
+						&& response.getFirstHeader(HttpHeaders.LOCATION) != null;
+			}
+			return super.isRedirected(request, response, context);
+		}
+
+		@Override
+		public HttpUriRequest getRedirect(HttpRequest request,
+				HttpResponse response, HttpContext context)
+				throws ProtocolException {
+			HttpUriRequest redirect = super.getRedirect(request, response,
+					context);
+			int code = response.getStatusLine().getStatusCode();
+			if (code == HttpStatus.SC_MOVED_PERMANENTLY
+					|| code == SC_PERMANENT_REDIRECT) {
+				context.setAttribute(PERMANENT_LOCATION, redirect.getURI()
+						.toString());
+			} else {
+				context.setAttribute(TEMPORARY_REDIRECT, Boolean.TRUE);
+			}
+			return redirect;
+		}
 	}
 
 	private static class DefaultTrustManager implements X509TrustManager {
@@ -57,6 +57,19 @@ public class MetricsBean {
 		thisMinute.statusesInserted += statusesCount;
 	}
 
+	public void feedNotModified() {
+		thisHour.feedsNotModified++;
+		thisMinute.feedsNotModified++;
+	}
+
+	/**
+	 * the server sent the same content again
+	 */
+	public void feedSoftNotModified() {
+		thisHour.feedsSoftNotModified++;
+		thisMinute.feedsSoftNotModified++;
+	}
+
 	public void threadWaited() {
 		thisHour.threadWaited++;
 		thisMinute.threadWaited++;
@@ -80,6 +93,8 @@ public class MetricsBean {
 	public static class Metric {
 		private int feedsRefreshed;
 		private int feedsUpdated;
+		private int feedsNotModified;
+		private int feedsSoftNotModified;
 		private int entriesInserted;
 		private int statusesInserted;
 		private int threadWaited;
@@ -100,6 +115,31 @@ public class MetricsBean {
 			this.feedsUpdated = feedsUpdated;
 		}
 
+		public int getFeedsNotModified() {
+			return feedsNotModified;
+		}
+
+		public void setFeedsNotModified(int feedsNotModified) {
+			this.feedsNotModified = feedsNotModified;
+		}
+
+		public int getFeedsSoftNotModified() {
+			return feedsSoftNotModified;
+		}
+
+		public void setFeedsSoftNotModified(int feedsSoftNotModified) {
+			this.feedsSoftNotModified = feedsSoftNotModified;
+		}
+
+		/**
+		 * percentage of refreshed feeds whose content was identical to the
+		 * previous one despite the server not answering with a 304
+		 */
+		public int getSoftNotModifiedRate() {
+			return feedsRefreshed == 0 ? 0 : 100 * feedsSoftNotModified
+					/ feedsRefreshed;
+		}
+
 		public int getEntriesInserted() {
 			return entriesInserted;
 		}
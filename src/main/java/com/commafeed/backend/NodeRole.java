@@ -0,0 +1,52 @@
+package com.commafeed.backend;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * What a node does when several nodes share the same database, read from the
+ * commafeed.role system property so that the same war can be deployed for
+ * every role
+ */
+public enum NodeRole {
+
+	/**
+	 * serves users and refreshes feeds, the default
+	 */
+	ALL,
+
+	/**
+	 * serves users only, refresh requests are left to the crawlers
+	 */
+	WEB,
+
+	/**
+	 * only refreshes feeds, routing users away from it is left to the load
+	 * balancer
+	 */
+	CRAWLER;
+
+	public static final String PROPERTY = "commafeed.role";
+
+	/**
+	 * Reads the role of this node, fails with a message listing the allowed
+	 * values if the property is not one of them
+	 */
+	public static NodeRole get() {
+		String role = System.getProperty(PROPERTY);
+		if (StringUtils.isBlank(role)) {
+			return ALL;
+		}
+		try {
+			return valueOf(role.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException("invalid value '" + role
+					+ "' for the " + PROPERTY
+					+ " system property, expected one of "
+					+ StringUtils.join(values(), ", ").toLowerCase(), e);
+		}
+	}
+
+	public boolean isCrawler() {
+		return this != WEB;
+	}
+}
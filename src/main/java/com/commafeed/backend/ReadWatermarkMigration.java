@@ -0,0 +1,87 @@
+package com.commafeed.backend;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.commafeed.backend.dao.FeedEntryStatusDAO;
+import com.commafeed.backend.dao.FeedSubscriptionDAO;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Gives a read watermark to the subscriptions that don't have one yet and
+ * deletes the statuses it makes redundant, one subscription per transaction.
+ * Subscriptions not migrated yet keep working from their statuses.
+ */
+@Singleton
+public class ReadWatermarkMigration {
+
+	private static Logger log = LoggerFactory
+			.getLogger(ReadWatermarkMigration.class);
+
+	private static final int BATCH_SIZE = 100;
+
+	@Inject
+	FeedSubscriptionDAO feedSubscriptionDAO;
+
+	@Inject
+	FeedEntryStatusDAO feedEntryStatusDAO;
+
+	private ExecutorService executor;
+
+	public void start() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("read-watermark-migration").setDaemon(true)
+				.build());
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					migrate();
+				} catch (Exception e) {
+					log.error("read watermark migration failed : "
+							+ e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void migrate() {
+		long lastId = 0;
+		long migrated = 0;
+		long deleted = 0;
+		List<Long> ids;
+		do {
+			ids = feedSubscriptionDAO.findIdsWithoutWatermark(lastId,
+					BATCH_SIZE);
+			for (Long id : ids) {
+				if (Thread.currentThread().isInterrupted()) {
+					log.info("read watermark migration interrupted");
+					return;
+				}
+				deleted += feedEntryStatusDAO.migrateToWatermark(id);
+				migrated++;
+				lastId = id;
+			}
+		} while (ids.size() == BATCH_SIZE);
+
+		if (migrated > 0) {
+			log.info("gave a read watermark to {} subscriptions, deleted {} statuses",
+					migrated, deleted);
+		}
+	}
+}
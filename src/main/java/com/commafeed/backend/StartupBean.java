@@ -6,8 +6,6 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -15,11 +13,9 @@ import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
-import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.mutable.MutableBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +23,8 @@ import com.commafeed.backend.dao.FeedCategoryDAO;
 import com.commafeed.backend.dao.FeedDAO;
 import com.commafeed.backend.dao.FeedSubscriptionDAO;
 import com.commafeed.backend.dao.UserDAO;
-import com.commafeed.backend.feeds.FeedRefreshWorker;
+import com.commafeed.backend.feeds.EntryDirectionBackfill;
+import com.commafeed.backend.feeds.FeedRefreshTaskGiver;
 import com.commafeed.backend.model.ApplicationSettings;
 import com.commafeed.backend.model.UserRole.Role;
 import com.commafeed.backend.services.ApplicationSettingsService;
@@ -62,39 +59,38 @@ public class StartupBean {
 	ApplicationSettingsService applicationSettingsService;
 
 	@Inject
-	Instance<FeedRefreshWorker> workers;
+	FeedRefreshTaskGiver taskGiver;
+
+	@Inject
+	EntryDirectionBackfill entryDirectionBackfill;
+
+	@Inject
+	ReadWatermarkMigration readWatermarkMigration;
 
 	private long startupTime;
 	private Map<String, String> supportedLanguages = Maps.newHashMap();
 
-	private ExecutorService executor;
-	private MutableBoolean running = new MutableBoolean(true);
-
 	@PostConstruct
 	private void init() {
 		startupTime = Calendar.getInstance().getTimeInMillis();
+		// fails startup right away if the role is misspelled
+		NodeRole role = NodeRole.get();
 		if (userDAO.getCount() == 0) {
 			initialData();
 		}
 
 		initSupportedLanguages();
 
-		ApplicationSettings settings = applicationSettingsService.get();
-		int threads = settings.getBackgroundThreads();
-		log.info("Starting {} background threads", threads);
-
-		executor = Executors.newFixedThreadPool(Math.max(threads, 1));
-		for (int i = 0; i < threads; i++) {
-			final int threadId = i;
-			executor.execute(new Runnable() {
-				@Override
-				public void run() {
-					FeedRefreshWorker worker = workers.get();
-					worker.start(running, "Thread " + threadId);
-				}
-			});
+		if (role.isCrawler()) {
+			log.info("Starting feed refresh");
+			taskGiver.start();
+			entryDirectionBackfill.start();
+			if (applicationSettingsService.get().isReadWatermarks()) {
+				readWatermarkMigration.start();
+			}
+		} else {
+			log.info("Feed refresh disabled for role {}", role);
 		}
-
 	}
 
 	private void initSupportedLanguages() {
@@ -136,15 +132,7 @@ public class StartupBean {
 
 	@PreDestroy
 	public void shutdown() {
-		running.setValue(false);
-		executor.shutdownNow();
-		while (!executor.isTerminated()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				log.error("interrupted while waiting for threads to finish.");
-			}
-		}
+		taskGiver.stop();
 	}
 
 }
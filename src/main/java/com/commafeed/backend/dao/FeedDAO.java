@@ -1,10 +1,17 @@
 package com.commafeed.backend.dao;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
 import javax.ejb.Stateless;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.JoinType;
@@ -14,6 +21,8 @@ import javax.persistence.criteria.Root;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
 
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.Feed_;
@@ -23,6 +32,12 @@ import com.google.common.collect.Lists;
 @Stateless
 public class FeedDAO extends GenericDAO<Feed> {
 
+	private static final int IN_BATCH_SIZE = 500;
+
+	private static final String UPDATE_REFRESH_STATE = "update FEEDS set lastUpdated = ?, lastUpdateSuccess = ?, errorCount = ?, message = ?, disabledUntil = ?, "
+			+ "etagHeader = ?, lastModifiedHeader = ?, lastContentHash = ?, redirectUrl = ?, redirectCount = ?, subscriberCount = ?, lastSubscriberLogin = ?, link = ?, pushHub = ?, pushTopic = ?, postingRate = ?, hitRatio = ?, lastContentChange = ?, "
+			+ "leaseExpiry = case when leaseOwner = ? then ? else leaseExpiry end where id = ?";
+
 	private List<Predicate> getUpdatablePredicates(Root<Feed> root) {
 		Date now = Calendar.getInstance().getTime();
 
@@ -54,18 +69,206 @@ public class FeedDAO extends GenericDAO<Feed> {
 		return q.getSingleResult();
 	}
 
-	public List<Feed> findNextUpdatable(int count) {
+	/**
+	 * Returns id, lastUpdated, disabledUntil, subscriberCount and
+	 * lastSubscriberLogin of subscribed feeds, ordered by id, used to build the
+	 * refresh schedule
+	 */
+	public List<Object[]> findScheduleData(long afterId, int count) {
+		CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+		Root<Feed> root = query.from(getType());
+
+		query.multiselect(root.get(Feed_.id), root.get(Feed_.lastUpdated),
+				root.get(Feed_.disabledUntil),
+				root.get(Feed_.subscriberCount),
+				root.get(Feed_.lastSubscriberLogin));
+		query.where(builder.isNotEmpty(root.get(Feed_.subscriptions)),
+				builder.greaterThan(root.get(Feed_.id), afterId));
+		query.orderBy(builder.asc(root.get(Feed_.id)));
+
+		TypedQuery<Object[]> q = em.createQuery(query);
+		q.setMaxResults(count);
+		return q.getResultList();
+	}
+
+	public List<Feed> findByIds(Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return Lists.newArrayList();
+		}
 		CriteriaQuery<Feed> query = builder.createQuery(getType());
 		Root<Feed> root = query.from(getType());
 
-		query.where(getUpdatablePredicates(root).toArray(new Predicate[0]));
+		query.where(root.get(Feed_.id).in(ids));
 
-		query.orderBy(builder.asc(root.get(Feed_.lastUpdated)));
+		return em.createQuery(query).getResultList();
+	}
 
-		TypedQuery<Feed> q = em.createQuery(query);
-		q.setMaxResults(count);
+	/**
+	 * Writes only the columns changed by a refresh, as a single jdbc batch
+	 * without loading or merging the entities. The lease is only extended if
+	 * the feed is still held by the same node.
+	 */
+	public void updateRefreshState(final Collection<Feed> feeds) {
+		if (feeds.isEmpty()) {
+			return;
+		}
+		Session session = em.unwrap(Session.class);
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement ps = connection
+						.prepareStatement(UPDATE_REFRESH_STATE);
+				try {
+					for (Feed feed : feeds) {
+						int i = 1;
+						setDate(ps, i++, feed.getLastUpdated());
+						setDate(ps, i++, feed.getLastUpdateSuccess());
+						ps.setInt(i++, feed.getErrorCount());
+						ps.setString(i++, feed.getMessage());
+						setDate(ps, i++, feed.getDisabledUntil());
+						ps.setString(i++, feed.getEtagHeader());
+						ps.setString(i++, feed.getLastModifiedHeader());
+						ps.setString(i++, feed.getLastContentHash());
+						ps.setString(i++, feed.getRedirectUrl());
+						ps.setInt(i++, feed.getRedirectCount());
+						ps.setInt(i++, feed.getSubscriberCount());
+						setDate(ps, i++, feed.getLastSubscriberLogin());
+						ps.setString(i++, feed.getLink());
+						ps.setString(i++, feed.getPushHub());
+						ps.setString(i++, feed.getPushTopic());
+						setDouble(ps, i++, feed.getPostingRate());
+						setDouble(ps, i++, feed.getHitRatio());
+						setDate(ps, i++, feed.getLastContentChange());
+						ps.setString(i++, feed.getLeaseOwner());
+						setDate(ps, i++, feed.getLeaseExpiry());
+						ps.setLong(i++, feed.getId());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+	}
 
-		return q.getResultList();
+	private static void setDate(PreparedStatement ps, int index, Date date)
+			throws SQLException {
+		if (date == null) {
+			ps.setNull(index, Types.TIMESTAMP);
+		} else {
+			ps.setTimestamp(index, new Timestamp(date.getTime()));
+		}
+	}
+
+	private static void setDouble(PreparedStatement ps, int index,
+			Double value) throws SQLException {
+		if (value == null) {
+			ps.setNull(index, Types.DOUBLE);
+		} else {
+			ps.setDouble(index, value);
+		}
+	}
+
+	public void updateUrl(Feed feed, String url) {
+		em.createQuery(
+				"update Feed f set f.url = :url, f.urlHash = :urlHash where f.id = :id")
+				.setParameter("url", url)
+				.setParameter("urlHash", DigestUtils.sha1Hex(url))
+				.setParameter("id", feed.getId()).executeUpdate();
+	}
+
+	/**
+	 * Claims the feeds that are not leased, leased by the given node or whose
+	 * lease expired, and returns the ids of the feeds the node now holds
+	 *
+	 * @param updatedBefore
+	 *            if not null, feeds not held by the node are only claimed if
+	 *            they are due in the database: not disabled and not refreshed
+	 *            since that date
+	 */
+	public List<Long> claimLeases(Collection<Long> ids, String owner,
+			Date now, Date expiry, Date updatedBefore) {
+		if (ids.isEmpty()) {
+			return Lists.newArrayList();
+		}
+		String due = "";
+		if (updatedBefore != null) {
+			due = " and (f.disabledUntil is null or f.disabledUntil < :now) "
+					+ "and (f.lastUpdated is null or f.lastUpdated < :updatedBefore)";
+		}
+		Query claim = em.createQuery("update Feed f set f.leaseOwner = :owner, "
+				+ "f.leaseExpiry = :expiry, f.lastUpdated = :now "
+				+ "where f.id in (:ids) and (f.leaseOwner = :owner "
+				+ "or ((f.leaseOwner is null or f.leaseExpiry < :now)" + due
+				+ "))");
+		claim.setParameter("owner", owner).setParameter("expiry", expiry)
+				.setParameter("ids", ids).setParameter("now", now);
+		if (updatedBefore != null) {
+			claim.setParameter("updatedBefore", updatedBefore);
+		}
+		claim.executeUpdate();
+
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<Feed> root = query.from(getType());
+		query.select(root.get(Feed_.id));
+		query.where(root.get(Feed_.id).in(ids),
+				builder.equal(root.get(Feed_.leaseOwner), owner));
+		return em.createQuery(query).getResultList();
+	}
+
+	/**
+	 * Asks the nodes refreshing feeds to refresh this one as soon as
+	 * possible, a feed that was never claimed is picked up by
+	 * findRefreshRequests
+	 */
+	public void requestRefresh(Feed feed) {
+		em.createQuery(
+				"update Feed f set f.lastUpdated = null, f.disabledUntil = null, "
+						+ "f.etagHeader = :etag, "
+						+ "f.lastModifiedHeader = :lastModified, "
+						+ "f.lastContentHash = :hash where f.id = :id")
+				.setParameter("etag", feed.getEtagHeader())
+				.setParameter("lastModified", feed.getLastModifiedHeader())
+				.setParameter("hash", feed.getLastContentHash())
+				.setParameter("id", feed.getId()).executeUpdate();
+	}
+
+	/**
+	 * Asks for a refresh of the given feeds as soon as possible, keeping their
+	 * cache headers
+	 */
+	public void requestRefresh(Collection<Long> ids) {
+		for (List<Long> batch : Lists.partition(Lists.newArrayList(ids),
+				IN_BATCH_SIZE)) {
+			em.createQuery(
+					"update Feed f set f.lastUpdated = null, f.disabledUntil = null where f.id in (:ids)")
+					.setParameter("ids", batch).executeUpdate();
+		}
+	}
+
+	/**
+	 * Returns the ids of subscribed feeds that were never claimed for a
+	 * refresh, new feeds or feeds whose refresh was requested on another node
+	 */
+	public List<Long> findRefreshRequests(int count) {
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<Feed> root = query.from(getType());
+		query.select(root.get(Feed_.id));
+		query.where(builder.isNull(root.get(Feed_.lastUpdated)),
+				builder.isNotEmpty(root.get(Feed_.subscriptions)));
+		return em.createQuery(query).setMaxResults(count).getResultList();
+	}
+
+	/**
+	 * Gives up the leases held by the node so that other nodes can take over
+	 * its feeds right away
+	 */
+	public int releaseLeases(String owner) {
+		return em
+				.createQuery(
+						"update Feed f set f.leaseOwner = null, f.leaseExpiry = null where f.leaseOwner = :owner")
+				.setParameter("owner", owner).executeUpdate();
 	}
 
 	public Feed findByUrl(String url) {
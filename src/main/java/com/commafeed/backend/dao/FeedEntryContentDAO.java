@@ -0,0 +1,42 @@
+package com.commafeed.backend.dao;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.ejb.Stateless;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import com.commafeed.backend.model.FeedEntryContent;
+import com.commafeed.backend.model.FeedEntryContent_;
+
+@Stateless
+public class FeedEntryContentDAO extends GenericDAO<FeedEntryContent> {
+
+	/**
+	 * Returns contents whose direction was not computed yet, in id order
+	 */
+	public List<FeedEntryContent> findWithoutDirection(long afterId, int count) {
+		CriteriaQuery<FeedEntryContent> query = builder.createQuery(getType());
+		Root<FeedEntryContent> root = query.from(getType());
+
+		query.where(builder.isNull(root.get(FeedEntryContent_.rtl)),
+				builder.greaterThan(root.get(FeedEntryContent_.id), afterId));
+		query.orderBy(builder.asc(root.get(FeedEntryContent_.id)));
+
+		TypedQuery<FeedEntryContent> q = em.createQuery(query);
+		q.setMaxResults(count);
+		return q.getResultList();
+	}
+
+	public void updateDirection(Collection<Long> ids, boolean rtl) {
+		if (ids.isEmpty()) {
+			return;
+		}
+		em.createQuery(
+				"update FeedEntryContent c set c.rtl = :rtl where c.id in (:ids)")
+				.setParameter("rtl", rtl).setParameter("ids", ids)
+				.executeUpdate();
+	}
+}
@@ -59,6 +59,23 @@ public class FeedEntryDAO extends GenericDAO<FeedEntry> {
 		return list;
 	}
 
+	/**
+	 * Returns the ids and guid hashes of the entries, in id order
+	 */
+	public List<Object[]> findGuidHashes(long afterId, int count) {
+		CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+		Root<FeedEntry> root = query.from(getType());
+
+		query.multiselect(root.get(FeedEntry_.id),
+				root.get(FeedEntry_.guidHash));
+		query.where(builder.greaterThan(root.get(FeedEntry_.id), afterId));
+		query.orderBy(builder.asc(root.get(FeedEntry_.id)));
+
+		TypedQuery<Object[]> q = em.createQuery(query);
+		q.setMaxResults(count);
+		return q.getResultList();
+	}
+
 	public List<FeedEntry> findByFeed(Feed feed, int offset, int limit) {
 		CriteriaQuery<FeedEntry> query = builder.createQuery(getType());
 		Root<FeedEntry> root = query.from(getType());
@@ -1,10 +1,13 @@
 package com.commafeed.backend.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
@@ -14,9 +17,12 @@ import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.SetJoin;
+import javax.persistence.criteria.Subquery;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.commafeed.backend.feeds.FeedUtils;
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedCategory;
 import com.commafeed.backend.model.FeedEntry;
@@ -27,14 +33,36 @@ import com.commafeed.backend.model.FeedEntryStatus_;
 import com.commafeed.backend.model.FeedEntry_;
 import com.commafeed.backend.model.FeedSubscription;
 import com.commafeed.backend.model.FeedSubscription_;
+import com.commafeed.backend.model.Feed_;
 import com.commafeed.backend.model.User;
 import com.commafeed.backend.model.UserSettings.ReadingOrder;
-import com.google.api.client.util.Lists;
-import com.google.api.client.util.Maps;
-
+import com.commafeed.backend.services.ApplicationSettingsService;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Statuses of the entries for the subscriptions of a user.
+ *
+ * With read watermarks, a subscription only has rows for the entries whose
+ * status differs from its watermark or that are starred. The statuses of the
+ * other entries are built from the watermark and have no id.
+ */
 @Stateless
 public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 
+	/**
+	 * separates the subscription id and the entry id in the id of a status
+	 * without row
+	 */
+	public static final String ID_SEPARATOR = "-";
+
+	private static final int IN_BATCH_SIZE = 500;
+
+	@Inject
+	ApplicationSettingsService applicationSettingsService;
+
 	@SuppressWarnings("unchecked")
 	public FeedEntryStatus findById(User user, Long id) {
 
@@ -58,6 +86,45 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		return status;
 	}
 
+	/**
+	 * Finds a status by the id given to clients, the id of its row or the
+	 * subscription and entry ids of a status without row. A status without row
+	 * is returned unsaved
+	 */
+	public FeedEntryStatus findById(User user, String id) {
+		if (!StringUtils.contains(id, ID_SEPARATOR)) {
+			return findById(user, Long.valueOf(id));
+		}
+		Long subscriptionId = Long.valueOf(StringUtils.substringBefore(id,
+				ID_SEPARATOR));
+		Long entryId = Long.valueOf(StringUtils.substringAfter(id,
+				ID_SEPARATOR));
+
+		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
+		Root<FeedEntryStatus> root = query.from(getType());
+		Join<FeedEntryStatus, FeedSubscription> subJoin = root
+				.join(FeedEntryStatus_.subscription);
+
+		query.where(builder.equal(subJoin.get(FeedSubscription_.id),
+				subscriptionId), builder.equal(
+				subJoin.get(FeedSubscription_.user), user), builder.equal(
+				root.get(FeedEntryStatus_.entry).get(FeedEntry_.id), entryId));
+
+		FeedEntryStatus status = Iterables.getFirst(em.createQuery(query)
+				.getResultList(), null);
+		if (status == null) {
+			FeedSubscription sub = em.find(FeedSubscription.class,
+					subscriptionId);
+			FeedEntry entry = em.find(FeedEntry.class, entryId);
+			if (sub != null && entry != null
+					&& sub.getUser().getId().equals(user.getId())
+					&& FeedUtils.findFeed(entry.getFeeds(), sub.getFeed()) != null) {
+				status = newStatus(sub, entry);
+			}
+		}
+		return status;
+	}
+
 	public List<FeedEntryStatus> findByKeywords(User user, String keywords,
 			int offset, int limit) {
 
@@ -65,6 +132,11 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 				keywords.toLowerCase().split(" "), "%");
 		joinedKeywords = "%" + joinedKeywords + "%";
 
+		if (isReadWatermarks()) {
+			return findWithWatermarks(user, null, null, joinedKeywords, false,
+					null, offset, limit, ReadingOrder.desc, true);
+		}
+
 		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
 		Root<FeedEntryStatus> root = query.from(getType());
 
@@ -75,19 +147,9 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		Join<FeedEntryStatus, FeedSubscription> subJoin = root.join(
 				FeedEntryStatus_.subscription, JoinType.LEFT);
 
-		Join<FeedEntry, FeedEntryContent> contentJoin = entryJoin.join(
-				FeedEntry_.content, JoinType.LEFT);
-
 		predicates
 				.add(builder.equal(subJoin.get(FeedSubscription_.user), user));
-
-		Predicate content = builder.like(
-				builder.lower(contentJoin.get(FeedEntryContent_.content)),
-				joinedKeywords);
-		Predicate title = builder.like(
-				builder.lower(contentJoin.get(FeedEntryContent_.title)),
-				joinedKeywords);
-		predicates.add(builder.or(content, title));
+		predicates.add(matchesKeywords(entryJoin, joinedKeywords));
 
 		query.where(predicates.toArray(new Predicate[0]));
 
@@ -142,6 +204,68 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 	public List<FeedEntryStatus> findAll(User user, boolean unreadOnly,
 			Date newerThan, int offset, int limit, ReadingOrder order,
 			boolean includeContent) {
+		if (isReadWatermarks()) {
+			return findWithWatermarks(user, null, null, null, unreadOnly,
+					newerThan, offset, limit, order, includeContent);
+		}
+		return findRows(user, null, null, unreadOnly, newerThan, offset,
+				limit, order, includeContent);
+	}
+
+	/**
+	 * Returns the status rows of the user, without the statuses built from
+	 * the watermarks
+	 */
+	public List<FeedEntryStatus> findByUser(User user) {
+		return findRows(user, null, null, false, null, -1, -1,
+				ReadingOrder.desc, false);
+	}
+
+	public List<FeedEntryStatus> findByFeed(Feed feed, User user,
+			boolean unreadOnly, ReadingOrder order, boolean includeContent) {
+		return findByFeed(feed, user, unreadOnly, null, -1, -1, order,
+				includeContent);
+	}
+
+	public List<FeedEntryStatus> findByFeed(Feed feed, User user,
+			boolean unreadOnly, Date newerThan, int offset, int limit,
+			ReadingOrder order, boolean includeContent) {
+		if (isReadWatermarks()) {
+			return findWithWatermarks(user, feed, null, null, unreadOnly,
+					newerThan, offset, limit, order, includeContent);
+		}
+		return findRows(user, feed, null, unreadOnly, newerThan, offset,
+				limit, order, includeContent);
+	}
+
+	public List<FeedEntryStatus> findByCategories(
+			List<FeedCategory> categories, User user, boolean unreadOnly,
+			ReadingOrder order, boolean includeContent) {
+		return findByCategories(categories, user, unreadOnly, null, -1, -1,
+				order, includeContent);
+	}
+
+	public List<FeedEntryStatus> findByCategories(
+			List<FeedCategory> categories, User user, boolean unreadOnly,
+			Date newerThan, int offset, int limit, ReadingOrder order,
+			boolean includeContent) {
+		if (isReadWatermarks()) {
+			return findWithWatermarks(user, null, categories, null,
+					unreadOnly, newerThan, offset, limit, order,
+					includeContent);
+		}
+		return findRows(user, null, categories, unreadOnly, newerThan,
+				offset, limit, order, includeContent);
+	}
+
+	/**
+	 * Status rows of the subscriptions of the user, optionally restricted to
+	 * a feed or to categories
+	 */
+	private List<FeedEntryStatus> findRows(User user, Feed feed,
+			List<FeedCategory> categories, boolean unreadOnly, Date newerThan,
+			int offset, int limit, ReadingOrder order, boolean includeContent) {
+
 		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
 		Root<FeedEntryStatus> root = query.from(getType());
 
@@ -154,6 +278,14 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 
 		predicates
 				.add(builder.equal(subJoin.get(FeedSubscription_.user), user));
+		if (feed != null) {
+			predicates.add(builder.equal(subJoin.get(FeedSubscription_.feed),
+					feed));
+		}
+		if (categories != null) {
+			predicates.add(subJoin.get(FeedSubscription_.category).in(
+					categories));
+		}
 		if (unreadOnly) {
 			predicates.add(builder.isFalse(root.get(FeedEntryStatus_.read)));
 		}
@@ -164,6 +296,7 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		}
 
 		query.where(predicates.toArray(new Predicate[0]));
+
 		orderBy(query, entryJoin, order);
 
 		TypedQuery<FeedEntryStatus> q = em.createQuery(query);
@@ -171,89 +304,175 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		return lazyLoadContent(includeContent, q.getResultList());
 	}
 
-	public List<FeedEntryStatus> findByFeed(Feed feed, User user,
-			boolean unreadOnly, ReadingOrder order, boolean includeContent) {
-		return findByFeed(feed, user, unreadOnly, null, -1, -1, order,
-				includeContent);
-	}
-
-	public List<FeedEntryStatus> findByFeed(Feed feed, User user,
+	/**
+	 * Entries of the subscriptions of the user with their status, optionally
+	 * restricted to a feed, to categories or to keywords
+	 */
+	private List<FeedEntryStatus> findWithWatermarks(User user, Feed feed,
+			List<FeedCategory> categories, String keywords,
 			boolean unreadOnly, Date newerThan, int offset, int limit,
 			ReadingOrder order, boolean includeContent) {
 
-		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
-		Root<FeedEntryStatus> root = query.from(getType());
-
-		List<Predicate> predicates = Lists.newArrayList();
-
-		Join<FeedEntryStatus, FeedEntry> entryJoin = root.join(
-				FeedEntryStatus_.entry, JoinType.LEFT);
-		Join<FeedEntryStatus, FeedSubscription> subJoin = root.join(
-				FeedEntryStatus_.subscription, JoinType.LEFT);
+		CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+		Root<FeedEntry> entry = query.from(FeedEntry.class);
+		Root<FeedSubscription> sub = query.from(FeedSubscription.class);
 
-		predicates
-				.add(builder.equal(subJoin.get(FeedSubscription_.user), user));
-		predicates
-				.add(builder.equal(subJoin.get(FeedSubscription_.feed), feed));
+		List<Predicate> predicates = subscriptionEntries(entry, sub, user);
+		if (feed != null) {
+			predicates.add(builder.equal(sub.get(FeedSubscription_.feed), feed));
+		}
+		if (categories != null) {
+			predicates.add(sub.get(FeedSubscription_.category).in(categories));
+		}
+		if (keywords != null) {
+			predicates.add(matchesKeywords(entry, keywords));
+		}
 		if (unreadOnly) {
-			predicates.add(builder.isFalse(root.get(FeedEntryStatus_.read)));
+			predicates.add(isUnread(query, entry, sub));
+		} else {
+			// without watermark, entries without row are not shown
+			predicates.add(builder.or(
+					builder.isNotNull(sub.get(FeedSubscription_.readUpTo)),
+					builder.exists(statusRow(query, entry, sub, null))));
 		}
 
 		if (newerThan != null) {
 			predicates.add(builder.greaterThanOrEqualTo(
-					entryJoin.get(FeedEntry_.inserted), newerThan));
+					entry.get(FeedEntry_.inserted), newerThan));
 		}
 
+		query.multiselect(sub, entry);
 		query.where(predicates.toArray(new Predicate[0]));
 
-		orderBy(query, entryJoin, order);
+		orderBy(query, entry, order);
 
-		TypedQuery<FeedEntryStatus> q = em.createQuery(query);
+		TypedQuery<Object[]> q = em.createQuery(query);
 		limit(q, offset, limit);
-		return lazyLoadContent(includeContent, q.getResultList());
+		return lazyLoadContent(includeContent, withRows(q.getResultList()));
 	}
 
-	public List<FeedEntryStatus> findByCategories(
-			List<FeedCategory> categories, User user, boolean unreadOnly,
-			ReadingOrder order, boolean includeContent) {
-		return findByCategories(categories, user, unreadOnly, null, -1, -1,
-				order, includeContent);
+	/**
+	 * Joins the entries with the subscriptions of the user to their feed
+	 */
+	private List<Predicate> subscriptionEntries(Root<FeedEntry> entry,
+			Root<FeedSubscription> sub, User user) {
+		SetJoin<FeedEntry, Feed> feedJoin = entry.join(FeedEntry_.feeds);
+
+		List<Predicate> predicates = Lists.newArrayList();
+		predicates.add(builder.equal(sub.get(FeedSubscription_.user), user));
+		predicates.add(builder.equal(
+				sub.get(FeedSubscription_.feed).get(Feed_.id),
+				feedJoin.get(Feed_.id)));
+		return predicates;
 	}
 
-	public List<FeedEntryStatus> findByCategories(
-			List<FeedCategory> categories, User user, boolean unreadOnly,
-			Date newerThan, int offset, int limit, ReadingOrder order,
-			boolean includeContent) {
+	/**
+	 * The status row decides if there is one, the watermark otherwise
+	 */
+	private Predicate isUnread(CriteriaQuery<?> query, Root<FeedEntry> entry,
+			Root<FeedSubscription> sub) {
+		Path<Date> readUpTo = sub.get(FeedSubscription_.readUpTo);
+		Predicate afterWatermark = builder.and(
+				builder.isNotNull(readUpTo),
+				builder.greaterThanOrEqualTo(entry.get(FeedEntry_.inserted),
+						readUpTo),
+				builder.not(builder.exists(statusRow(query, entry, sub, null))));
+		return builder.or(afterWatermark,
+				builder.exists(statusRow(query, entry, sub, false)));
+	}
 
-		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
-		Root<FeedEntryStatus> root = query.from(getType());
+	private Subquery<Long> statusRow(CriteriaQuery<?> query,
+			Root<FeedEntry> entry, Root<FeedSubscription> sub, Boolean read) {
+		Subquery<Long> subquery = query.subquery(Long.class);
+		Root<FeedEntryStatus> root = subquery.from(getType());
 
 		List<Predicate> predicates = Lists.newArrayList();
+		predicates.add(builder.equal(root.get(FeedEntryStatus_.entry), entry));
+		predicates.add(builder.equal(root.get(FeedEntryStatus_.subscription),
+				sub));
+		if (read != null) {
+			predicates.add(builder.equal(root.get(FeedEntryStatus_.read), read));
+		}
 
-		Join<FeedEntryStatus, FeedEntry> entryJoin = root.join(
-				FeedEntryStatus_.entry, JoinType.LEFT);
-		Join<FeedEntryStatus, FeedSubscription> subJoin = root.join(
-				FeedEntryStatus_.subscription, JoinType.LEFT);
+		subquery.select(root.get(FeedEntryStatus_.id));
+		subquery.where(predicates.toArray(new Predicate[0]));
+		return subquery;
+	}
 
-		predicates
-				.add(builder.equal(subJoin.get(FeedSubscription_.user), user));
-		predicates.add(subJoin.get(FeedSubscription_.category).in(categories));
-		if (unreadOnly) {
-			predicates.add(builder.isFalse(root.get(FeedEntryStatus_.read)));
+	private Predicate matchesKeywords(Path<FeedEntry> entry, String keywords) {
+		Path<FeedEntryContent> content = entry.get(FeedEntry_.content);
+		Predicate inContent = builder.like(
+				builder.lower(content.get(FeedEntryContent_.content)), keywords);
+		Predicate inTitle = builder.like(
+				builder.lower(content.get(FeedEntryContent_.title)), keywords);
+		return builder.or(inContent, inTitle);
+	}
+
+	/**
+	 * Returns the status rows of the (subscription, entry) pairs, and new
+	 * statuses for the pairs without row
+	 */
+	private List<FeedEntryStatus> withRows(List<Object[]> pairs) {
+		Set<Long> subIds = Sets.newHashSet();
+		Set<Long> entryIds = Sets.newHashSet();
+		for (Object[] pair : pairs) {
+			subIds.add(((FeedSubscription) pair[0]).getId());
+			entryIds.add(((FeedEntry) pair[1]).getId());
 		}
 
-		if (newerThan != null) {
-			predicates.add(builder.greaterThanOrEqualTo(
-					entryJoin.get(FeedEntry_.inserted), newerThan));
+		Map<String, FeedEntryStatus> rows = Maps.newHashMap();
+		for (List<Long> batch : Lists.partition(Lists.newArrayList(entryIds),
+				IN_BATCH_SIZE)) {
+			for (FeedEntryStatus status : findRows(subIds, batch)) {
+				rows.put(buildId(status.getSubscription(), status.getEntry()),
+						status);
+			}
 		}
 
-		query.where(predicates.toArray(new Predicate[0]));
+		List<FeedEntryStatus> statuses = Lists.newArrayList();
+		for (Object[] pair : pairs) {
+			FeedSubscription sub = (FeedSubscription) pair[0];
+			FeedEntry entry = (FeedEntry) pair[1];
+			FeedEntryStatus status = rows.get(buildId(sub, entry));
+			statuses.add(status != null ? status : newStatus(sub, entry));
+		}
+		return statuses;
+	}
 
-		orderBy(query, entryJoin, order);
+	private List<FeedEntryStatus> findRows(Collection<Long> subIds,
+			Collection<Long> entryIds) {
+		CriteriaQuery<FeedEntryStatus> query = builder.createQuery(getType());
+		Root<FeedEntryStatus> root = query.from(getType());
 
-		TypedQuery<FeedEntryStatus> q = em.createQuery(query);
-		limit(q, offset, limit);
-		return lazyLoadContent(includeContent, q.getResultList());
+		query.where(
+				root.get(FeedEntryStatus_.subscription)
+						.get(FeedSubscription_.id).in(subIds),
+				root.get(FeedEntryStatus_.entry).get(FeedEntry_.id)
+						.in(entryIds));
+		return em.createQuery(query).getResultList();
+	}
+
+	/**
+	 * Status of an entry without row, read if the entry was inserted before
+	 * the watermark of the subscription
+	 */
+	private FeedEntryStatus newStatus(FeedSubscription sub, FeedEntry entry) {
+		Date readUpTo = sub.getReadUpTo();
+		Date inserted = entry.getInserted();
+
+		FeedEntryStatus status = new FeedEntryStatus();
+		status.setSubscription(sub);
+		status.setEntry(entry);
+		status.setRead(readUpTo == null || inserted == null
+				|| inserted.before(readUpTo));
+		return status;
+	}
+
+	/**
+	 * id given to clients for a status without row
+	 */
+	public static String buildId(FeedSubscription sub, FeedEntry entry) {
+		return sub.getId() + ID_SEPARATOR + entry.getId();
 	}
 
 	/**
@@ -262,9 +481,26 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 	@SuppressWarnings("rawtypes")
 	public Map<Long, Long> getUnreadCount(User user) {
 		Map<Long, Long> map = Maps.newHashMap();
-		Query query = em.createNamedQuery("EntryStatus.unreadCounts");
-		query.setParameter("user", user);
-		List resultList = query.getResultList();
+		List resultList;
+		if (isReadWatermarks()) {
+			CriteriaQuery<Object[]> query = builder
+					.createQuery(Object[].class);
+			Root<FeedEntry> entry = query.from(FeedEntry.class);
+			Root<FeedSubscription> sub = query.from(FeedSubscription.class);
+
+			List<Predicate> predicates = subscriptionEntries(entry, sub, user);
+			predicates.add(isUnread(query, entry, sub));
+
+			Path<Long> subId = sub.get(FeedSubscription_.id);
+			query.multiselect(subId, builder.count(entry));
+			query.where(predicates.toArray(new Predicate[0]));
+			query.groupBy(subId);
+			resultList = em.createQuery(query).getResultList();
+		} else {
+			Query query = em.createNamedQuery("EntryStatus.unreadCounts");
+			query.setParameter("user", user);
+			resultList = query.getResultList();
+		}
 		for (Object o : resultList) {
 			Object[] array = (Object[]) o;
 			map.put((Long) array[0], (Long) array[1]);
@@ -283,9 +519,9 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		return results;
 	}
 
-	private void orderBy(CriteriaQuery<FeedEntryStatus> query,
-			Join<FeedEntryStatus, FeedEntry> entryJoin, ReadingOrder order) {
-		Path<Date> orderPath = entryJoin.get(FeedEntry_.updated);
+	private void orderBy(CriteriaQuery<?> query, Path<FeedEntry> entry,
+			ReadingOrder order) {
+		Path<Date> orderPath = entry.get(FeedEntry_.updated);
 		if (order == ReadingOrder.asc) {
 			query.orderBy(builder.asc(orderPath));
 		} else {
@@ -294,15 +530,21 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 	}
 
 	public void markFeedEntries(User user, Feed feed, Date olderThan) {
-		List<FeedEntryStatus> statuses = findByFeed(feed, user, true,
-				ReadingOrder.desc, false);
+		if (isReadWatermarks()) {
+			moveWatermarks(user, feed, null, olderThan);
+		}
+		List<FeedEntryStatus> statuses = findRows(user, feed, null, true,
+				null, -1, -1, ReadingOrder.desc, false);
 		saveOrUpdate(markList(statuses, olderThan));
 	}
 
 	public void markCategoryEntries(User user, List<FeedCategory> categories,
 			Date olderThan) {
-		List<FeedEntryStatus> statuses = findByCategories(categories, user,
-				true, ReadingOrder.desc, false);
+		if (isReadWatermarks()) {
+			moveWatermarks(user, null, categories, olderThan);
+		}
+		List<FeedEntryStatus> statuses = findRows(user, null, categories,
+				true, null, -1, -1, ReadingOrder.desc, false);
 		saveOrUpdate(markList(statuses, olderThan));
 	}
 
@@ -313,11 +555,48 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 	}
 
 	public void markAllEntries(User user, Date olderThan) {
-		List<FeedEntryStatus> statuses = findAll(user, true, ReadingOrder.desc,
-				false);
+		if (isReadWatermarks()) {
+			moveWatermarks(user, null, null, olderThan);
+		}
+		List<FeedEntryStatus> statuses = findRows(user, null, null, true,
+				null, -1, -1, ReadingOrder.desc, false);
 		saveOrUpdate(markList(statuses, olderThan));
 	}
 
+	/**
+	 * Marks the entries inserted before olderThan as read by moving the
+	 * watermarks of the subscriptions, the unread rows are marked by the
+	 * caller
+	 */
+	private void moveWatermarks(User user, Feed feed,
+			List<FeedCategory> categories, Date olderThan) {
+		Date readUpTo = olderThan == null ? new Date() : olderThan;
+
+		CriteriaQuery<FeedSubscription> query = builder
+				.createQuery(FeedSubscription.class);
+		Root<FeedSubscription> root = query.from(FeedSubscription.class);
+		Path<Date> current = root.get(FeedSubscription_.readUpTo);
+
+		List<Predicate> predicates = Lists.newArrayList();
+		predicates.add(builder.equal(root.get(FeedSubscription_.user), user));
+		if (feed != null) {
+			predicates.add(builder.equal(root.get(FeedSubscription_.feed),
+					feed));
+		}
+		if (categories != null) {
+			predicates
+					.add(root.get(FeedSubscription_.category).in(categories));
+		}
+		predicates.add(builder.lessThan(current, readUpTo));
+		query.where(predicates.toArray(new Predicate[0]));
+
+		List<FeedSubscription> subs = em.createQuery(query).getResultList();
+		for (FeedSubscription sub : subs) {
+			sub.setReadUpTo(readUpTo);
+		}
+		saveOrUpdate(subs);
+	}
+
 	private List<FeedEntryStatus> markList(List<FeedEntryStatus> statuses,
 			Date olderThan) {
 		List<FeedEntryStatus> list = Lists.newArrayList();
@@ -333,4 +612,83 @@ public class FeedEntryStatusDAO extends GenericDAO<FeedEntryStatus> {
 		}
 		return list;
 	}
+
+	/**
+	 * Gives a watermark to a subscription whose read entries are only known
+	 * from their statuses, at the oldest unread entry, and deletes the rows
+	 * the watermark makes redundant. Starred rows are kept. Returns the number
+	 * of rows deleted
+	 */
+	public int migrateToWatermark(Long subscriptionId) {
+		CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+		Root<FeedEntryStatus> root = query.from(getType());
+		Join<FeedEntryStatus, FeedEntry> entryJoin = root
+				.join(FeedEntryStatus_.entry);
+
+		query.multiselect(root.get(FeedEntryStatus_.id),
+				root.get(FeedEntryStatus_.read),
+				root.get(FeedEntryStatus_.starred),
+				entryJoin.get(FeedEntry_.inserted));
+		query.where(builder.equal(root.get(FeedEntryStatus_.subscription)
+				.get(FeedSubscription_.id), subscriptionId));
+		List<Object[]> rows = em.createQuery(query).getResultList();
+
+		Date readUpTo = null;
+		for (Object[] row : rows) {
+			Date inserted = (Date) row[3];
+			if (!(Boolean) row[1] && inserted != null
+					&& (readUpTo == null || inserted.before(readUpTo))) {
+				readUpTo = inserted;
+			}
+		}
+		if (readUpTo == null) {
+			readUpTo = new Date();
+		}
+
+		List<Long> read = Lists.newArrayList();
+		List<Long> unread = Lists.newArrayList();
+		for (Object[] row : rows) {
+			if ((Boolean) row[2]) {
+				continue;
+			}
+			Date inserted = (Date) row[3];
+			boolean readByWatermark = inserted == null
+					|| inserted.before(readUpTo);
+			if ((Boolean) row[1] && readByWatermark) {
+				read.add((Long) row[0]);
+			} else if (!(Boolean) row[1] && !readByWatermark) {
+				unread.add((Long) row[0]);
+			}
+		}
+
+		int updated = em
+				.createQuery(
+						"update FeedSubscription s set s.readUpTo = :readUpTo where s.id = :id and s.readUpTo is null")
+				.setParameter("readUpTo", readUpTo)
+				.setParameter("id", subscriptionId).executeUpdate();
+		if (updated == 0) {
+			// already migrated
+			return 0;
+		}
+		return deleteRows(read, true) + deleteRows(unread, false);
+	}
+
+	/**
+	 * Deletes the rows that were not changed in the meantime
+	 */
+	private int deleteRows(List<Long> ids, boolean read) {
+		int deleted = 0;
+		for (List<Long> batch : Lists.partition(ids, IN_BATCH_SIZE)) {
+			deleted += em
+					.createQuery(
+							"delete from FeedEntryStatus s where s.id in (:ids) and s.read = :read and s.starred = false")
+					.setParameter("ids", batch).setParameter("read", read)
+					.executeUpdate();
+		}
+		return deleted;
+	}
+
+	private boolean isReadWatermarks() {
+		return applicationSettingsService.get().isReadWatermarks();
+	}
 }
@@ -1,19 +1,26 @@
 package com.commafeed.backend.dao;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Stateless;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedCategory;
+import com.commafeed.backend.model.Feed_;
 import com.commafeed.backend.model.FeedSubscription;
 import com.commafeed.backend.model.FeedSubscription_;
 import com.commafeed.backend.model.User;
+import com.commafeed.backend.model.User_;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 @Stateless
 public class FeedSubscriptionDAO extends GenericDAO<FeedSubscription> {
@@ -33,6 +40,27 @@ public class FeedSubscriptionDAO extends GenericDAO<FeedSubscription> {
 		return Iterables.getFirst(em.createQuery(query).getResultList(), null);
 	}
 
+	/**
+	 * Returns feed id, number of subscriptions and most recent login of the
+	 * subscribers, for the given feeds that have subscriptions
+	 */
+	public List<Object[]> findSubscriberActivity(Collection<Long> feedIds) {
+		if (feedIds.isEmpty()) {
+			return Lists.newArrayList();
+		}
+		CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+		Root<FeedSubscription> root = query.from(getType());
+		Join<FeedSubscription, User> user = root.join(FeedSubscription_.user);
+		Path<Long> feedId = root.get(FeedSubscription_.feed).get(Feed_.id);
+
+		query.multiselect(feedId, builder.count(root),
+				builder.greatest(user.get(User_.lastLogin)));
+		query.where(feedId.in(feedIds));
+		query.groupBy(feedId);
+
+		return em.createQuery(query).getResultList();
+	}
+
 	public List<FeedSubscription> findByFeed(Feed feed) {
 		return findByField(FeedSubscription_.feed, feed);
 	}
@@ -93,4 +121,22 @@ public class FeedSubscriptionDAO extends GenericDAO<FeedSubscription> {
 
 		return em.createQuery(query).getResultList();
 	}
+
+	/**
+	 * Returns the ids of the subscriptions without read watermark, in id order
+	 */
+	public List<Long> findIdsWithoutWatermark(long afterId, int count) {
+		CriteriaQuery<Long> query = builder.createQuery(Long.class);
+		Root<FeedSubscription> root = query.from(getType());
+		Path<Long> id = root.get(FeedSubscription_.id);
+
+		query.select(id);
+		query.where(builder.isNull(root.get(FeedSubscription_.readUpTo)),
+				builder.greaterThan(id, afterId));
+		query.orderBy(builder.asc(id));
+
+		TypedQuery<Long> q = em.createQuery(query);
+		q.setMaxResults(count);
+		return q.getResultList();
+	}
 }
@@ -0,0 +1,212 @@
+package com.commafeed.backend.feeds;
+
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.mozilla.universalchardet.UniversalDetector;
+
+/**
+ * Resolves the encoding of a fetched document from the cheapest source
+ * available: byte order mark, charset of the Content-Type header, then XML
+ * declaration. The statistical detector only runs on a prefix of the document
+ * when the declared charsets are missing or disagree.
+ */
+public class CharsetResolver {
+
+	public static final String DEFAULT_ENCODING = "UTF-8";
+
+	/**
+	 * bytes searched for the XML declaration
+	 */
+	private static final int DECLARATION_LENGTH = 1024;
+
+	/**
+	 * bytes given to the detector at most
+	 */
+	private static final int DETECTION_LENGTH = 64 * 1024;
+
+	private static final Pattern CONTENT_TYPE_CHARSET = Pattern.compile(
+			"charset\\s*=\\s*[\"']?([^\"';\\s]+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern DECLARATION_ENCODING = Pattern
+			.compile("^\\s*<\\?xml[^>]*?\\sencoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']");
+
+	public enum Source {
+		BOM, HEADER, DECLARATION, DETECTOR, DEFAULT
+	}
+
+	public static class Resolution {
+		private final String encoding;
+		private final Source source;
+
+		public Resolution(String encoding, Source source) {
+			this.encoding = encoding;
+			this.source = source;
+		}
+
+		public String getEncoding() {
+			return encoding;
+		}
+
+		public Source getSource() {
+			return source;
+		}
+	}
+
+	public static Resolution resolve(byte[] bytes, String contentType) {
+		String bom = getBomEncoding(bytes);
+		if (bom != null) {
+			return new Resolution(bom, Source.BOM);
+		}
+
+		String header = validate(getHeaderEncoding(contentType), bytes);
+		String declaration = validate(getDeclaredEncoding(bytes), bytes);
+		if (header != null && declaration != null) {
+			if (Charset.forName(header).equals(Charset.forName(declaration))) {
+				return new Resolution(header, Source.HEADER);
+			}
+		} else if (header != null) {
+			return new Resolution(header, Source.HEADER);
+		} else if (declaration != null) {
+			return new Resolution(declaration, Source.DECLARATION);
+		}
+
+		String detected = detect(bytes);
+		if (detected != null) {
+			return new Resolution(detected, Source.DETECTOR);
+		}
+		return new Resolution(DEFAULT_ENCODING, Source.DEFAULT);
+	}
+
+	static String getBomEncoding(byte[] bytes) {
+		if (startsWith(bytes, 0xEF, 0xBB, 0xBF)) {
+			return "UTF-8";
+		} else if (startsWith(bytes, 0xFE, 0xFF)) {
+			return "UTF-16BE";
+		} else if (startsWith(bytes, 0xFF, 0xFE)) {
+			return "UTF-16LE";
+		}
+		return null;
+	}
+
+	static String getHeaderEncoding(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		Matcher matcher = CONTENT_TYPE_CHARSET.matcher(contentType);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	static String getDeclaredEncoding(byte[] bytes) {
+		int length = Math.min(bytes.length, DECLARATION_LENGTH);
+		int end = -1;
+		for (int i = 0; i < length - 1; i++) {
+			if (bytes[i] == '?' && bytes[i + 1] == '>') {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			return null;
+		}
+		// the declaration is ascii in all the encodings it can declare
+		String prolog = new String(bytes, 0, end, Charset.forName("ISO-8859-1"));
+		Matcher matcher = DECLARATION_ENCODING.matcher(prolog);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * Returns the java name of the encoding if it is supported and the
+	 * document can be in that encoding, null otherwise
+	 */
+	private static String validate(String encoding, byte[] bytes) {
+		if (StringUtils.isBlank(encoding)) {
+			return null;
+		}
+		Charset charset;
+		try {
+			charset = Charset.forName(encoding);
+		} catch (Exception e) {
+			return null;
+		}
+		String name = charset.name();
+		if (name.startsWith("UTF-16") || name.startsWith("UTF-32")) {
+			// we would have found a bom, or the declaration is wrong
+			return null;
+		}
+		if (name.equals("UTF-8") && !isUtf8(bytes)) {
+			return null;
+		}
+		if (name.equals("ISO-8859-1") || name.equals("US-ASCII")) {
+			// what browsers do, windows-1252 is a superset of both
+			name = "windows-1252";
+		}
+		return name;
+	}
+
+	private static String detect(byte[] bytes) {
+		UniversalDetector detector = new UniversalDetector(null);
+		int length = Math.min(bytes.length, DETECTION_LENGTH);
+		int offset = 0;
+		while (offset < length && !detector.isDone()) {
+			int chunk = Math.min(4096, length - offset);
+			detector.handleData(bytes, offset, chunk);
+			offset += chunk;
+		}
+		detector.dataEnd();
+		String encoding = detector.getDetectedCharset();
+		if (encoding != null
+				&& (encoding.equalsIgnoreCase("ISO-8859-1") || encoding
+						.equalsIgnoreCase("ISO-8859-2"))) {
+			encoding = "windows-1252";
+		}
+		return encoding;
+	}
+
+	/**
+	 * Checks that the bytes are well-formed UTF-8, without decoding them
+	 */
+	static boolean isUtf8(byte[] bytes) {
+		int i = 0;
+		while (i < bytes.length) {
+			int b = bytes[i] & 0xFF;
+			int continuation;
+			if (b < 0x80) {
+				i++;
+				continue;
+			} else if (b >= 0xC2 && b <= 0xDF) {
+				continuation = 1;
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				continuation = 2;
+			} else if (b >= 0xF0 && b <= 0xF4) {
+				continuation = 3;
+			} else {
+				return false;
+			}
+			if (i + continuation >= bytes.length) {
+				// truncated document, only the last character is lost
+				return true;
+			}
+			for (int j = 1; j <= continuation; j++) {
+				if ((bytes[i + j] & 0xC0) != 0x80) {
+					return false;
+				}
+			}
+			i += continuation + 1;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] bytes, int... prefix) {
+		if (bytes.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if ((bytes[i] & 0xFF) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,95 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.commafeed.backend.dao.FeedEntryContentDAO;
+import com.commafeed.backend.model.FeedEntryContent;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Computes the text direction of the entries stored before it was computed on
+ * insert, in small batches so that the database is not overloaded. Stops when
+ * every entry has a direction.
+ */
+@Singleton
+public class EntryDirectionBackfill {
+
+	private static Logger log = LoggerFactory
+			.getLogger(EntryDirectionBackfill.class);
+
+	private static final int BATCH_SIZE = 100;
+	private static final long PAUSE_MILLIS = 500;
+
+	@Inject
+	FeedEntryContentDAO feedEntryContentDAO;
+
+	private ExecutorService executor;
+
+	public void start() {
+		executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("entry-direction-backfill").setDaemon(true)
+				.build());
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					backfill();
+				} catch (InterruptedException e) {
+					log.info("entry direction backfill interrupted");
+				} catch (Exception e) {
+					log.error(
+							"entry direction backfill failed : "
+									+ e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void backfill() throws InterruptedException {
+		long lastId = 0;
+		long processed = 0;
+		List<FeedEntryContent> contents;
+		do {
+			contents = feedEntryContentDAO.findWithoutDirection(lastId,
+					BATCH_SIZE);
+			List<Long> rtl = Lists.newArrayList();
+			List<Long> ltr = Lists.newArrayList();
+			for (FeedEntryContent content : contents) {
+				if (FeedUtils.isRTL(content)) {
+					rtl.add(content.getId());
+				} else {
+					ltr.add(content.getId());
+				}
+				lastId = Math.max(lastId, content.getId());
+			}
+			feedEntryContentDAO.updateDirection(rtl, true);
+			feedEntryContentDAO.updateDirection(ltr, false);
+			processed += contents.size();
+			if (contents.size() == BATCH_SIZE) {
+				TimeUnit.MILLISECONDS.sleep(PAUSE_MILLIS);
+			}
+		} while (contents.size() == BATCH_SIZE);
+
+		if (processed > 0) {
+			log.info("computed the direction of {} entries", processed);
+		}
+	}
+}
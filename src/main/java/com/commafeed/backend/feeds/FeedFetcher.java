@@ -16,6 +16,7 @@ import com.commafeed.backend.HttpGetter;
 import com.commafeed.backend.HttpGetter.HttpResult;
 import com.commafeed.backend.HttpGetter.NotModifiedException;
 import com.commafeed.backend.model.Feed;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.sun.syndication.io.FeedException;
 
 public class FeedFetcher {
@@ -32,7 +33,6 @@ public class FeedFetcher {
 			String lastModified, String eTag) throws FeedException,
 			ClientProtocolException, IOException, NotModifiedException {
 		log.debug("Fetching feed {}", feedUrl);
-		FetchedFeed fetchedFeed = null;
 
 		HttpResult result = getter.getBinary(feedUrl, lastModified, eTag);
 		if (extractFeedUrlFromHtml) {
@@ -43,11 +43,27 @@ public class FeedFetcher {
 				feedUrl = extractedUrl;
 			}
 		}
+		return parse(feedUrl, result);
+	}
+
+	/**
+	 * Starts fetching the feed without blocking, the content has to be parsed
+	 * with {@link #parse(String, HttpResult)} once available
+	 */
+	public ListenableFuture<HttpResult> fetchAsync(Feed feed) {
+		log.debug("Fetching feed {}", feed.getUrl());
+		return getter.getBinaryAsync(feed.getUrl(),
+				feed.getLastModifiedHeader(), feed.getEtagHeader());
+	}
+
+	public FetchedFeed parse(String feedUrl, HttpResult result)
+			throws FeedException, IOException {
 		if (result.getContent() == null) {
 			throw new IOException("Feed content is empty.");
 		}
 
-		fetchedFeed = parser.parse(feedUrl, result.getContent());
+		FetchedFeed fetchedFeed = parser.parse(feedUrl, result.getContent(),
+				result.getContentType());
 		Feed feed = fetchedFeed.getFeed();
 		feed.setLastModifiedHeader(result.getLastModifiedSince());
 		feed.setEtagHeader(FeedUtils.truncate(result.geteTag(), 255));
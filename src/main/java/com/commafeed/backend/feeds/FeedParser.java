@@ -1,10 +1,14 @@
 package com.commafeed.backend.feeds;
 
-import java.io.StringReader;
+import java.io.Reader;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
@@ -15,12 +19,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.InputSource;
 
+import com.commafeed.backend.feeds.CharsetResolver.Resolution;
+import com.commafeed.backend.feeds.CharsetResolver.Source;
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedEntry;
 import com.commafeed.backend.model.FeedEntryContent;
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.sun.syndication.feed.synd.SyndContent;
 import com.sun.syndication.feed.synd.SyndEnclosure;
 import com.sun.syndication.feed.synd.SyndEntry;
@@ -30,6 +37,11 @@ import com.sun.syndication.feed.synd.SyndLinkImpl;
 import com.sun.syndication.io.FeedException;
 import com.sun.syndication.io.SyndFeedInput;
 
+/**
+ * Parses feeds with the streaming parser when it supports the format, and with
+ * ROME otherwise.
+ */
+@Singleton
 public class FeedParser {
 
 	private static Logger log = LoggerFactory.getLogger(FeedParser.class);
@@ -47,79 +59,183 @@ public class FeedParser {
 		}
 	};
 
-	@SuppressWarnings("unchecked")
+	private StaxFeedParser streamingParser = new StaxFeedParser();
+
+	private AtomicLong streamed = new AtomicLong();
+	private AtomicLong fallbacks = new AtomicLong();
+	private AtomicLong streamingFailures = new AtomicLong();
+
+	private Map<Source, AtomicLong> charsetSources = Maps
+			.newEnumMap(Source.class);
+
+	public FeedParser() {
+		for (Source source : Source.values()) {
+			charsetSources.put(source, new AtomicLong());
+		}
+	}
+
 	public FetchedFeed parse(String feedUrl, byte[] xml) throws FeedException {
-		FetchedFeed fetchedFeed = new FetchedFeed();
-		Feed feed = fetchedFeed.getFeed();
-		List<FeedEntry> entries = fetchedFeed.getEntries();
-		feed.setLastUpdated(Calendar.getInstance().getTime());
+		return parse(feedUrl, xml, null);
+	}
 
+	/**
+	 * @param contentType
+	 *            the Content-Type header the document was served with, used
+	 *            to find its encoding
+	 */
+	public FetchedFeed parse(String feedUrl, byte[] xml, String contentType)
+			throws FeedException {
 		try {
-			String encoding = FeedUtils.guessEncoding(xml);
-			String xmlString = FeedUtils.trimInvalidXmlCharacters(new String(
-					xml, encoding));
-			if (xmlString == null) {
-				throw new FeedException("Input string is null for url "
-						+ feedUrl);
+			Resolution charset = CharsetResolver.resolve(xml, contentType);
+			charsetSources.get(charset.getSource()).incrementAndGet();
+			if (xml.length == 0) {
+				throw new FeedException("Input is empty for url " + feedUrl);
 			}
-			InputSource source = new InputSource(new StringReader(xmlString));
-			SyndFeed rss = new SyndFeedInput().build(source);
-			handleForeignMarkup(rss);
 
-			fetchedFeed.setTitle(rss.getTitle());
-			fetchedFeed.setHub(findHub(rss));
-			fetchedFeed.setTopic(findSelf(rss));
-			feed.setUrl(feedUrl);
-			feed.setLink(rss.getLink());
-			List<SyndEntry> items = rss.getEntries();
-			for (SyndEntry item : items) {
-				FeedEntry entry = new FeedEntry();
-
-				String guid = item.getUri();
-				if (StringUtils.isBlank(guid)) {
-					guid = item.getLink();
-				}
-				if (StringUtils.isBlank(guid)) {
-					// no guid and no link, skip entry
-					continue;
-				}
-				entry.setGuid(FeedUtils.truncate(guid, 2048));
-				entry.setGuidHash(DigestUtils.sha1Hex(guid));
-				entry.setUrl(FeedUtils.truncate(
-						FeedUtils.toAbsoluteUrl(item.getLink(), feed.getLink()),
-						2048));
-				entry.setUpdated(validateDate(getUpdateDate(item)));
-				entry.setAuthor(FeedUtils.truncate(item.getAuthor(), 128));
-
-				FeedEntryContent content = new FeedEntryContent();
-				content.setContent(getContent(item));
-				content.setTitle(getTitle(item));
-				SyndEnclosure enclosure = (SyndEnclosure) Iterables.getFirst(
-						item.getEnclosures(), null);
-				if (enclosure != null) {
-					content.setEnclosureUrl(FeedUtils.truncate(
-							enclosure.getUrl(), 2048));
-					content.setEnclosureType(enclosure.getType());
-				}
-				entry.setContent(content);
-
-				entries.add(entry);
+			FetchedFeed fetchedFeed = null;
+			try {
+				fetchedFeed = streamingParser.parse(FeedUtils.newXmlReader(xml,
+						charset.getEncoding()));
+			} catch (Exception e) {
+				// ROME will report the error if the document is invalid
+				log.debug("streaming parser failed for {} : {}", feedUrl,
+						e.getMessage());
+				streamingFailures.incrementAndGet();
+			}
+			if (fetchedFeed != null) {
+				streamed.incrementAndGet();
+			} else {
+				fallbacks.incrementAndGet();
+				fetchedFeed = parseWithRome(FeedUtils.newXmlReader(xml,
+						charset.getEncoding()));
 			}
+
+			Feed feed = fetchedFeed.getFeed();
+			feed.setUrl(feedUrl);
+			feed.setLastUpdated(Calendar.getInstance().getTime());
+			List<FeedEntry> entries = fetchedFeed.getEntries();
 			Date publishedDate = null;
 			if (!entries.isEmpty()) {
 				Long timestamp = FeedUtils.getSortedTimestamps(entries).get(0);
 				publishedDate = new Date(timestamp);
 			}
 			fetchedFeed.setPublishedDate(publishedDate);
-
+			return fetchedFeed;
 		} catch (Exception e) {
 			throw new FeedException(String.format(
 					"Could not parse feed from %s : %s", feedUrl,
 					e.getMessage()), e);
 		}
+	}
+
+	@SuppressWarnings("unchecked")
+	FetchedFeed parseWithRome(Reader xml) throws FeedException {
+		FetchedFeed fetchedFeed = new FetchedFeed();
+		Feed feed = fetchedFeed.getFeed();
+		InputSource source = new InputSource(xml);
+		SyndFeed rss = new SyndFeedInput().build(source);
+		handleForeignMarkup(rss);
+
+		fetchedFeed.setTitle(rss.getTitle());
+		fetchedFeed.setHub(findHub(rss));
+		fetchedFeed.setTopic(findSelf(rss));
+		feed.setLink(rss.getLink());
+		List<SyndEntry> items = rss.getEntries();
+		for (SyndEntry item : items) {
+			SyndEnclosure enclosure = (SyndEnclosure) Iterables.getFirst(
+					item.getEnclosures(), null);
+			FeedEntry entry = buildEntry(item.getUri(), item.getLink(),
+					feed.getLink(), item.getUpdatedDate(),
+					item.getPublishedDate(), item.getAuthor(),
+					getContent(item), item.getTitle(),
+					enclosure == null ? null : enclosure.getUrl(),
+					enclosure == null ? null : enclosure.getType());
+			if (entry != null) {
+				fetchedFeed.getEntries().add(entry);
+			}
+		}
 		return fetchedFeed;
 	}
 
+	/**
+	 * Builds an entry from the values of a parsed item, returns null if the
+	 * item has no guid and no link
+	 */
+	static FeedEntry buildEntry(String uri, String link, String feedLink,
+			Date updated, Date published, String author, String content,
+			String title, String enclosureUrl, String enclosureType) {
+		String guid = uri;
+		if (StringUtils.isBlank(guid)) {
+			guid = link;
+		}
+		if (StringUtils.isBlank(guid)) {
+			return null;
+		}
+
+		FeedEntry entry = new FeedEntry();
+		entry.setGuid(FeedUtils.truncate(guid, 2048));
+		entry.setGuidHash(DigestUtils.sha1Hex(guid));
+		entry.setUrl(FeedUtils.truncate(FeedUtils.toAbsoluteUrl(link, feedLink),
+				2048));
+		entry.setUpdated(validateDate(getUpdateDate(updated, published)));
+		entry.setAuthor(FeedUtils.truncate(author, 128));
+
+		FeedEntryContent entryContent = new FeedEntryContent();
+		entryContent.setContent(content);
+		entryContent.setTitle(getTitle(title, published));
+		entryContent.setEnclosureUrl(FeedUtils.truncate(enclosureUrl, 2048));
+		entryContent.setEnclosureType(enclosureType);
+		entry.setContent(entryContent);
+		return entry;
+	}
+
+	public ParserStatistics getStatistics() {
+		ParserStatistics stats = new ParserStatistics();
+		stats.streamed = streamed.get();
+		stats.fallbacks = fallbacks.get();
+		stats.streamingFailures = streamingFailures.get();
+		for (Source source : Source.values()) {
+			stats.charsetSources.put(source, charsetSources.get(source).get());
+		}
+		return stats;
+	}
+
+	public static class ParserStatistics {
+		private long streamed;
+		private long fallbacks;
+		private long streamingFailures;
+		private Map<Source, Long> charsetSources = Maps
+				.newEnumMap(Source.class);
+
+		/**
+		 * feeds parsed by the streaming parser
+		 */
+		public long getStreamed() {
+			return streamed;
+		}
+
+		/**
+		 * feeds parsed by ROME
+		 */
+		public long getFallbacks() {
+			return fallbacks;
+		}
+
+		/**
+		 * fallbacks caused by an error in the streaming parser
+		 */
+		public long getStreamingFailures() {
+			return streamingFailures;
+		}
+
+		/**
+		 * feeds parsed by where their encoding was found
+		 */
+		public Map<Source, Long> getCharsetSources() {
+			return charsetSources;
+		}
+	}
+
 	/**
 	 * Adds atom links for rss feeds
 	 */
@@ -147,10 +263,10 @@ public class FeedParser {
 
 	}
 
-	private Date getUpdateDate(SyndEntry item) {
-		Date date = item.getUpdatedDate();
+	private static Date getUpdateDate(Date updated, Date published) {
+		Date date = updated;
 		if (date == null) {
-			date = item.getPublishedDate();
+			date = published;
 		}
 		if (date == null) {
 			date = new Date();
@@ -158,7 +274,7 @@ public class FeedParser {
 		return date;
 	}
 
-	private Date validateDate(Date date) {
+	private static Date validateDate(Date date) {
 		if (date == null) {
 			return new Date();
 		}
@@ -182,12 +298,10 @@ public class FeedParser {
 		return content;
 	}
 
-	private String getTitle(SyndEntry item) {
-		String title = item.getTitle();
+	private static String getTitle(String title, Date published) {
 		if (StringUtils.isBlank(title)) {
-			Date date = item.getPublishedDate();
-			if (date != null) {
-				title = DateFormat.getInstance().format(date);
+			if (published != null) {
+				title = DateFormat.getInstance().format(published);
 			} else {
 				title = "(no title)";
 			}
@@ -0,0 +1,193 @@
+package com.commafeed.backend.feeds;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang3.time.DateUtils;
+
+import com.commafeed.backend.model.Feed;
+import com.commafeed.backend.model.FeedEntry;
+
+/**
+ * Estimates how often a feed changes from the outcome of its refreshes and
+ * derives when it should be refreshed next. The statistics are stored on the
+ * feed so that no query is needed.
+ */
+public class FeedRefreshModel {
+
+	/**
+	 * weight of the last refresh in the hit ratio
+	 */
+	private static final double HIT_WEIGHT = 0.3;
+
+	/**
+	 * time after which an observation has lost 63% of its weight in the
+	 * posting rate
+	 */
+	private static final double RATE_TIME_CONSTANT_HOURS = 24;
+
+	private static final long MIN_INTERVAL = DateUtils.MILLIS_PER_MINUTE * 10;
+	private static final long MAX_INTERVAL = DateUtils.MILLIS_PER_HOUR * 24;
+	private static final long HOUR = DateUtils.MILLIS_PER_HOUR;
+	private static final int DORMANT_DAYS = 30;
+
+	/**
+	 * longest delay between two attempts of a feed that keeps failing
+	 */
+	private static final long MAX_ERROR_INTERVAL = DateUtils.MILLIS_PER_DAY * 7;
+
+	/**
+	 * subscribers that did not log in for that long are considered idle
+	 */
+	private static final int IDLE_DAYS = 7;
+	private static final long IDLE_INTERVAL = HOUR * 2;
+
+	/**
+	 * how much earlier a feed is due per doubling of its subscribers
+	 */
+	private static final long SUBSCRIBER_BONUS = DateUtils.MILLIS_PER_SECOND * 30;
+	private static final long MAX_SUBSCRIBER_BONUS = MIN_INTERVAL / 2;
+
+	/**
+	 * Updates the statistics after a successful refresh
+	 *
+	 * @param entries
+	 *            entries contained in the feed, may be null if the feed was
+	 *            not modified
+	 * @param newEntries
+	 *            number of entries that were not known for this feed
+	 */
+	public static void recordRefresh(Feed feed, List<FeedEntry> entries,
+			int newEntries, Date now) {
+		Date previous = feed.getLastUpdateSuccess();
+		Double rate = feed.getPostingRate();
+
+		if (rate == null) {
+			rate = estimateRate(entries);
+		} else if (previous != null && now.after(previous)) {
+			double hours = (double) (now.getTime() - previous.getTime())
+					/ HOUR;
+			double observed = newEntries / hours;
+			double weight = 1 - Math.exp(-hours / RATE_TIME_CONSTANT_HOURS);
+			rate = weight * observed + (1 - weight) * rate;
+		}
+		feed.setPostingRate(rate);
+
+		double hit = newEntries > 0 ? 1 : 0;
+		Double hitRatio = feed.getHitRatio();
+		feed.setHitRatio(hitRatio == null ? hit : HIT_WEIGHT * hit
+				+ (1 - HIT_WEIGHT) * hitRatio);
+
+		if (newEntries > 0) {
+			feed.setLastContentChange(now);
+		}
+		feed.setLastUpdateSuccess(now);
+	}
+
+	/**
+	 * Updates the statistics after a failed refresh, which counts as a
+	 * refresh that found nothing. The posting rate is left as is.
+	 */
+	public static void recordError(Feed feed) {
+		Double hitRatio = feed.getHitRatio();
+		feed.setHitRatio(hitRatio == null ? 0 : (1 - HIT_WEIGHT) * hitRatio);
+	}
+
+	/**
+	 * Returns when a failing feed should be tried again: the interval learned
+	 * for the feed, doubled for each consecutive error
+	 */
+	public static Date buildErrorDisabledUntil(Feed feed, Date now) {
+		return new Date(now.getTime() + getErrorInterval(feed, now));
+	}
+
+	static long getErrorInterval(Feed feed, Date now) {
+		int doublings = Math.min(Math.max(feed.getErrorCount() - 1, 0), 16);
+		return Math.min(MAX_ERROR_INTERVAL, getInterval(feed, now)
+				<< doublings);
+	}
+
+	/**
+	 * Returns when the feed should be refreshed next, based on the statistics
+	 * of the feed
+	 */
+	public static Date buildDisabledUntil(Feed feed, Date now) {
+		return new Date(now.getTime() + getInterval(feed, now));
+	}
+
+	/**
+	 * Minimum delay between two refreshes depending on the activity of the
+	 * subscribers: feeds nobody read for a week are refreshed every few hours
+	 * and feeds nobody read for a month once a day.
+	 */
+	public static long getMinInterval(Date lastSubscriberLogin, Date now) {
+		if (lastSubscriberLogin == null) {
+			// not known yet
+			return MIN_INTERVAL;
+		} else if (lastSubscriberLogin.before(DateUtils.addDays(now,
+				-DORMANT_DAYS))) {
+			return MAX_INTERVAL;
+		} else if (lastSubscriberLogin.before(DateUtils.addDays(now,
+				-IDLE_DAYS))) {
+			return IDLE_INTERVAL;
+		}
+		return MIN_INTERVAL;
+	}
+
+	/**
+	 * Shortest delay between two refreshes of a feed from the schedule
+	 */
+	public static long getShortestInterval() {
+		return MIN_INTERVAL - MAX_SUBSCRIBER_BONUS;
+	}
+
+	/**
+	 * Time subtracted from the due time of a feed so that feeds with many
+	 * subscribers come first among those due at the same time
+	 */
+	public static long getPriorityBonus(int subscriberCount) {
+		if (subscriberCount <= 1) {
+			return 0;
+		}
+		double doublings = Math.log(subscriberCount) / Math.log(2);
+		return Math.min(MAX_SUBSCRIBER_BONUS,
+				(long) (doublings * SUBSCRIBER_BONUS));
+	}
+
+	private static long getInterval(Feed feed, Date now) {
+		Date lastChange = feed.getLastContentChange();
+		if (lastChange != null
+				&& lastChange.before(DateUtils.addDays(now, -DORMANT_DAYS))) {
+			return MAX_INTERVAL;
+		}
+
+		long interval = MAX_INTERVAL;
+		Double rate = feed.getPostingRate();
+		if (rate != null && rate > 0) {
+			// refresh twice per expected entry
+			interval = (long) (HOUR / (2 * rate));
+		} else if (lastChange != null) {
+			interval = (now.getTime() - lastChange.getTime()) / 2;
+		}
+
+		Double hitRatio = feed.getHitRatio();
+		if (hitRatio != null) {
+			if (hitRatio < 0.2) {
+				// most refreshes are wasted
+				interval *= 2;
+			} else if (hitRatio > 0.8) {
+				// almost every refresh finds something, we are late
+				interval /= 2;
+			}
+		}
+		return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+	}
+
+	private static double estimateRate(List<FeedEntry> entries) {
+		if (entries == null || entries.size() < 2) {
+			return 0;
+		}
+		long average = FeedUtils.averageTimeBetweenEntries(entries);
+		return average > 0 ? (double) HOUR / average : 0;
+	}
+}
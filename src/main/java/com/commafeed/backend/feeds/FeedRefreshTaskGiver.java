@@ -1,49 +1,376 @@
 package com.commafeed.backend.feeds;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.annotation.PostConstruct;
+import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.mutable.MutableBoolean;
 import org.apache.commons.lang3.time.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.commafeed.backend.MetricsBean;
+import com.commafeed.backend.NodeRole;
 import com.commafeed.backend.dao.FeedDAO;
+import com.commafeed.backend.dao.FeedSubscriptionDAO;
+import com.commafeed.backend.feeds.HostLimiter.HostStatistics;
+import com.commafeed.backend.model.ApplicationSettings;
 import com.commafeed.backend.model.Feed;
+import com.commafeed.backend.model.User;
 import com.commafeed.backend.services.ApplicationSettingsService;
-import com.google.api.client.util.Maps;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Produces the feeds to refresh and hands them to the fetch stage
+ */
 @Singleton
 public class FeedRefreshTaskGiver {
 
+	private static Logger log = LoggerFactory
+			.getLogger(FeedRefreshTaskGiver.class);
+
+	/**
+	 * feeds loaded from the database at once
+	 */
+	private static final int REFILL_SIZE = 100;
+
+	/**
+	 * rows read at once when building the schedule
+	 */
+	private static final int LOAD_SIZE = 1000;
+
+	/**
+	 * stop loading feeds from the database when that many are waiting for
+	 * their host
+	 */
+	private static final int MAX_DEFERRED = 10 * REFILL_SIZE;
+
+	/**
+	 * a refill is started in the background when the queue gets below this
+	 * size
+	 */
+	private static final int LOW_WATERMARK = REFILL_SIZE / 2;
+
+	/**
+	 * maximum time take() waits for a running refill
+	 */
+	private static final long REFILL_WAIT_MILLIS = 1000;
+
+	/**
+	 * how long a node keeps the feeds it claimed for fetching, and for how
+	 * long after their next due time once refreshed. Feeds of a node that went
+	 * away are taken over after this delay.
+	 */
+	private static final long LEASE_MILLIS = DateUtils.MILLIS_PER_MINUTE * 30;
+
+	/**
+	 * system property identifying this node when several nodes share the
+	 * database, defaults to the host name
+	 */
+	private static final String NODE_PROPERTY = "commafeed.node";
+
+	/**
+	 * delay between two lookups of the feeds added or requested by other
+	 * nodes
+	 */
+	private static final long REQUEST_POLL_MILLIS = DateUtils.MILLIS_PER_MINUTE;
+
+	/**
+	 * maximum time the producer waits while only saturated hosts are left
+	 */
+	private static final long DEFERRED_WAIT_MILLIS = 200;
+
+	/**
+	 * refreshes a user may put in the priority lane per minute, further
+	 * requests only make the feed due
+	 */
+	private static final int PRIORITY_USER_LIMIT = 10;
+
 	@Inject
 	FeedDAO feedDAO;
 
+	@Inject
+	FeedSubscriptionDAO feedSubscriptionDAO;
+
 	@Inject
 	ApplicationSettingsService applicationSettingsService;
 
 	@Inject
 	MetricsBean metricsBean;
 
-	private int backgroundThreads;
+	@Inject
+	FeedStateWriter feedStateWriter;
+
+	/**
+	 * looked up lazily, the worker depends on us to give feeds back
+	 */
+	@Inject
+	Instance<FeedRefreshWorker> workers;
+
+	private ExecutorService executor;
+	private ExecutorService refiller;
+	private MutableBoolean running = new MutableBoolean(false);
+
+	private BlockingQueue<Feed> takeQueue = Queues.newLinkedBlockingQueue();
+
+	/**
+	 * feeds requested by users or pushed by a hub, fetched before anything
+	 * else
+	 */
+	private Queue<Feed> priorityQueue = Queues.newConcurrentLinkedQueue();
+
+	/**
+	 * feed ids in the priority lane and the time they were requested
+	 */
+	private ConcurrentMap<Long, Long> priorityRequests = Maps
+			.newConcurrentMap();
+
+	private LoadingCache<Long, AtomicInteger> userRequests = CacheBuilder
+			.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES)
+			.build(new CacheLoader<Long, AtomicInteger>() {
+				@Override
+				public AtomicInteger load(Long userId) {
+					return new AtomicInteger();
+				}
+			});
+
+	private AtomicLong priorityRequested = new AtomicLong();
+	private AtomicLong priorityDeduplicated = new AtomicLong();
+	private AtomicLong priorityRateLimited = new AtomicLong();
+	private AtomicLong priorityCompleted = new AtomicLong();
+	private AtomicLong priorityWithEntries = new AtomicLong();
+	private AtomicLong totalPriorityMillis = new AtomicLong();
+	private volatile long lastPriorityMillis;
+	private volatile long maxPriorityMillis;
+
+	private AtomicBoolean refilling = new AtomicBoolean();
+
+	private Lock wakeupLock = new ReentrantLock();
+	private Condition wakeupCondition = wakeupLock.newCondition();
+	private boolean wakeupPending;
+	private AtomicLong refills = new AtomicLong();
+	private AtomicLong totalRefillMillis = new AtomicLong();
+	private volatile long lastRefillMillis;
+	private volatile long maxRefillMillis;
+	private volatile int lastRefillSize;
+
+	private HostLimiter hostLimiter = new HostLimiter();
+	private FeedSchedule schedule = new FeedSchedule();
+
+	private String nodeId = buildNodeId();
+	private NodeRole role = NodeRole.get();
+	private long lastRequestPoll;
+	private AtomicLong leasesLost = new AtomicLong();
+	private AtomicLong notDue = new AtomicLong();
+
+	public void start() {
+		running.setValue(true);
+		applyHostLimits();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("feed-refresh-producer").build());
+		refiller = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("feed-refresh-refiller").build());
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				produce(workers.get());
+			}
+		});
+	}
+
+	public void stop() {
+		running.setValue(false);
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (refiller != null) {
+			refiller.shutdownNow();
+		}
+		try {
+			feedDAO.releaseLeases(nodeId);
+		} catch (Exception e) {
+			log.error("could not release feed leases : " + e.getMessage(), e);
+		}
+	}
+
+	private static String buildNodeId() {
+		String id = System.getProperty(NODE_PROPERTY);
+		if (StringUtils.isBlank(id)) {
+			try {
+				id = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				id = UUID.randomUUID().toString();
+			}
+		}
+		return id;
+	}
+
+	private void produce(FeedRefreshWorker worker) {
+		log.info("feed refresh producer starting");
+
+		try {
+			// sleeping before starting, let everything settle
+			Thread.sleep(5000);
+		} catch (InterruptedException e) {
+			log.info("feed refresh producer interrupted");
+			return;
+		}
+
+		loadSchedule();
+
+		while (running.isTrue()) {
+			Feed feed = null;
+			try {
+				feed = take();
+				if (feed != null) {
+					worker.updateFeed(feed);
+				} else if (hostLimiter.getDeferredCount() > 0) {
+					// only saturated hosts left, wait for a slot
+					awaitWork(DEFERRED_WAIT_MILLIS);
+				} else {
+					log.debug("waiting for work");
+					metricsBean.threadWaited();
+					awaitWork(getIdleWait());
+				}
+			} catch (InterruptedException e) {
+				log.info("feed refresh producer interrupted");
+				return;
+			} catch (Exception e) {
+				String feedUrl = "feed is null";
+				if (feed != null) {
+					feedUrl = feed.getUrl();
+				}
+				log.error("(" + feedUrl + ") : " + e.getMessage(), e);
+				if (feed != null) {
+					// keep it scheduled
+					giveBack(feed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until work is added or the given time elapsed, returns right away
+	 * if work was added since the last wait
+	 */
+	private void awaitWork(long millis) throws InterruptedException {
+		wakeupLock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			while (!wakeupPending && nanos > 0) {
+				nanos = wakeupCondition.awaitNanos(nanos);
+			}
+			wakeupPending = false;
+		} finally {
+			wakeupLock.unlock();
+		}
+	}
+
+	private void wakeUp() {
+		wakeupLock.lock();
+		try {
+			wakeupPending = true;
+			wakeupCondition.signalAll();
+		} finally {
+			wakeupLock.unlock();
+		}
+	}
+
+	/**
+	 * Time until the next feed is due, refreshes requested on other nodes are
+	 * looked up at least every REQUEST_POLL_MILLIS
+	 */
+	private long getIdleWait() {
+		long wait = schedule.peekDue() - System.currentTimeMillis();
+		return Math.max(DEFERRED_WAIT_MILLIS,
+				Math.min(REQUEST_POLL_MILLIS, wait));
+	}
 
-	private Queue<Feed> addQueue = Queues.newConcurrentLinkedQueue();
-	private Queue<Feed> takeQueue = Queues.newConcurrentLinkedQueue();
-	private Queue<Feed> giveBackQueue = Queues.newConcurrentLinkedQueue();
+	/**
+	 * Reads the due time of every subscribed feed, this is the only full scan
+	 * of the feeds table
+	 */
+	private void loadSchedule() {
+		long start = System.currentTimeMillis();
+		Date now = new Date(start);
+		long lastId = 0;
+		List<Object[]> rows = null;
+		do {
+			rows = feedDAO.findScheduleData(lastId, LOAD_SIZE);
+			for (Object[] row : rows) {
+				lastId = (Long) row[0];
+				schedule.schedule(lastId, getDueTime((Date) row[1],
+						(Date) row[2], (Integer) row[3], (Date) row[4], now));
+			}
+		} while (rows.size() == LOAD_SIZE && running.isTrue());
+		log.info("loaded {} feeds in the refresh schedule in {} ms",
+				schedule.size(), System.currentTimeMillis() - start);
+	}
 
-	@PostConstruct
-	public void init() {
-		backgroundThreads = applicationSettingsService.get()
-				.getBackgroundThreads();
+	/**
+	 * The feed is due once the minimum interval for the activity of its
+	 * subscribers has elapsed, and not before it is enabled again. Feeds with
+	 * more subscribers are due slightly earlier.
+	 */
+	private long getDueTime(Date lastUpdated, Date disabledUntil,
+			int subscriberCount, Date lastSubscriberLogin, Date now) {
+		long due = 0;
+		if (lastUpdated != null) {
+			due = lastUpdated.getTime()
+					+ FeedRefreshModel.getMinInterval(lastSubscriberLogin, now);
+		}
+		if (disabledUntil != null) {
+			due = Math.max(due, disabledUntil.getTime());
+		}
+		return due - FeedRefreshModel.getPriorityBonus(subscriberCount);
 	}
 
 	public void add(Feed feed) {
+		add(feed, null);
+	}
+
+	/**
+	 * Queues the feed in the priority lane, ahead of the scheduled feeds. A
+	 * feed is only once in the lane and a user that asks for more than
+	 * PRIORITY_USER_LIMIT refreshes per minute only makes the feed due. On
+	 * nodes that do not refresh feeds, or when another node holds the feed,
+	 * the request is stored in the database.
+	 *
+	 * @param user
+	 *            user asking for the refresh, null for push notifications
+	 */
+	public void add(Feed feed, User user) {
 		Date now = Calendar.getInstance().getTime();
 		boolean heavyLoad = applicationSettingsService.get().isHeavyLoad();
 		Date threshold = DateUtils.addMinutes(now, heavyLoad ? -10 : -1);
@@ -51,16 +378,105 @@ public class FeedRefreshTaskGiver {
 				|| feed.getLastUpdated().before(threshold)) {
 			feed.setEtagHeader(null);
 			feed.setLastModifiedHeader(null);
+			feed.setLastContentHash(null);
+		}
+		if (!role.isCrawler()) {
+			feedDAO.requestRefresh(feed);
+			return;
+		}
+
+		priorityRequested.incrementAndGet();
+		int userCount = user == null ? 0 : userRequests.getUnchecked(
+				user.getId()).incrementAndGet();
+		if (userCount > PRIORITY_USER_LIMIT) {
+			priorityRateLimited.incrementAndGet();
+			schedule.advance(feed.getId(), now.getTime());
+			wakeUp();
+			return;
+		}
+		if (priorityRequests.putIfAbsent(feed.getId(), now.getTime()) != null) {
+			priorityDeduplicated.incrementAndGet();
+			return;
 		}
-		addQueue.add(feed);
+
+		Date expiry = new Date(now.getTime() + LEASE_MILLIS);
+		List<Long> leased = feedDAO.claimLeases(
+				Collections.singleton(feed.getId()), nodeId, now, expiry, null);
+		if (leased.isEmpty()) {
+			// the node holding the feed will pick the request up
+			priorityRequests.remove(feed.getId());
+			feedDAO.requestRefresh(feed);
+			return;
+		}
+		// the feed may be managed by the caller, keep it in line with the
+		// claim
+		feed.setLeaseOwner(nodeId);
+		feed.setLeaseExpiry(expiry);
+		feed.setLastUpdated(now);
+		priorityQueue.add(feed);
+		wakeUp();
+	}
+
+	/**
+	 * Makes the given feeds due now, used when idle subscribers come back.
+	 * The request is stored in the database for the nodes holding the feeds,
+	 * this node may not refresh them or not hold them all.
+	 */
+	public void promote(Collection<Long> feedIds) {
+		if (feedIds.isEmpty()) {
+			return;
+		}
+		feedDAO.requestRefresh(feedIds);
+		if (!role.isCrawler()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Long id : feedIds) {
+			schedule.advance(id, now);
+		}
+		wakeUp();
 	}
 
-	public synchronized Feed take() {
-		Feed feed = takeQueue.poll();
+	/**
+	 * Returns the next feed whose host can be fetched right now, feeds of
+	 * saturated hosts are deferred. The priority lane is drained first. The
+	 * queue is refilled in the background, this only waits if it is empty
+	 * while a refill is running.
+	 */
+	public Feed take() throws InterruptedException {
+		Feed feed = null;
+		while (feed == null) {
+			Feed next = priorityQueue.poll();
+			if (next == null) {
+				break;
+			}
+			schedule.remove(next.getId());
+			if (hostLimiter.acquireOrDefer(next)) {
+				feed = next;
+			}
+		}
 
 		if (feed == null) {
-			refill();
-			feed = takeQueue.poll();
+			feed = hostLimiter.pollDeferred();
+		}
+
+		while (feed == null) {
+			if (takeQueue.size() < LOW_WATERMARK) {
+				triggerRefill();
+			}
+			Feed next = takeQueue.poll();
+			if (next == null && refilling.get()) {
+				next = takeQueue.poll(REFILL_WAIT_MILLIS,
+						TimeUnit.MILLISECONDS);
+			}
+			if (next == null) {
+				break;
+			} else if (priorityRequests.containsKey(next.getId())) {
+				// refreshed from the priority lane
+				continue;
+			} else if (hostLimiter.acquireOrDefer(next)) {
+				feed = next;
+			}
 		}
 
 		if (feed != null) {
@@ -69,36 +485,327 @@ public class FeedRefreshTaskGiver {
 		return feed;
 	}
 
-	private void refill() {
+	private void triggerRefill() {
+		if (hostLimiter.getDeferredCount() >= MAX_DEFERRED
+				|| !refilling.compareAndSet(false, true)) {
+			return;
+		}
+		refiller.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					lastRefillSize = refill();
+				} catch (Exception e) {
+					log.error("could not refill feed queue : " + e.getMessage(),
+							e);
+				} finally {
+					long duration = System.currentTimeMillis() - start;
+					refills.incrementAndGet();
+					totalRefillMillis.addAndGet(duration);
+					lastRefillMillis = duration;
+					maxRefillMillis = Math.max(maxRefillMillis, duration);
+					refilling.set(false);
+				}
+				if (!takeQueue.isEmpty()) {
+					wakeUp();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes the due feeds from the schedule and refreshes the subscriber
+	 * activity of every feed about to be fetched, feeds that lost all their
+	 * subscriptions are dropped from the schedule. Feeds held by another node
+	 * or that are not due in the database are rescheduled, only the feeds this
+	 * node could lease are queued. Returns the number of feeds queued.
+	 */
+	private int refill() {
 		Date now = Calendar.getInstance().getTime();
 
-		int count = 3 * backgroundThreads;
-		List<Feed> feeds = feedDAO.findNextUpdatable(count);
+		if (now.getTime() - lastRequestPoll > REQUEST_POLL_MILLIS) {
+			lastRequestPoll = now.getTime();
+			for (Long id : feedDAO.findRefreshRequests(LOAD_SIZE)) {
+				schedule.schedule(id, 0);
+			}
+		}
+
+		List<Long> ids = schedule.pollDue(now.getTime(), REFILL_SIZE);
+		// rescheduled when the priority lane gives them back
+		ids.removeAll(priorityRequests.keySet());
 
-		int size = addQueue.size();
-		for (int i = 0; i < size; i++) {
-			feeds.add(addQueue.poll());
+		Map<Long, Object[]> activity = Maps.newHashMap();
+		for (Object[] row : feedSubscriptionDAO.findSubscriberActivity(ids)) {
+			activity.put((Long) row[0], row);
 		}
 
-		Map<Long, Feed> map = Maps.newHashMap();
-		for (Feed f : feeds) {
-			f.setLastUpdated(now);
-			map.put(f.getId(), f);
+		List<Feed> due = Lists.newArrayList();
+		List<Long> dueIds = Lists.newArrayList();
+		for (Feed f : feedDAO.findByIds(activity.keySet())) {
+			Object[] row = activity.get(f.getId());
+			f.setSubscriberCount(((Long) row[1]).intValue());
+			f.setLastSubscriberLogin((Date) row[2]);
+			if (!nodeId.equals(f.getLeaseOwner())) {
+				// the schedule of this node does not know about the refreshes
+				// of other nodes
+				long dueTime = getDueTime(f.getLastUpdated(),
+						f.getDisabledUntil(), f.getSubscriberCount(),
+						f.getLastSubscriberLogin(), now);
+				if (dueTime > now.getTime()) {
+					notDue.incrementAndGet();
+					schedule.schedule(f.getId(), dueTime);
+					continue;
+				}
+			}
+			due.add(f);
+			dueIds.add(f.getId());
 		}
-		takeQueue.addAll(map.values());
 
-		size = giveBackQueue.size();
-		for (int i = 0; i < size; i++) {
-			Feed f = giveBackQueue.poll();
-			f.setLastUpdated(now);
-			map.put(f.getId(), f);
+		Date expiry = new Date(now.getTime() + LEASE_MILLIS);
+		Set<Long> leased = Sets.newHashSet(feedDAO.claimLeases(
+				dueIds, nodeId, now, expiry, new Date(now.getTime()
+						- FeedRefreshModel.getShortestInterval())));
+
+		List<Feed> feeds = Lists.newArrayList();
+		for (Feed f : due) {
+			if (leased.contains(f.getId())) {
+				f.setLeaseOwner(nodeId);
+				f.setLeaseExpiry(expiry);
+				f.setLastUpdated(now);
+				feeds.add(f);
+			} else {
+				// another node holds it, check again once it should have
+				// refreshed it
+				leasesLost.incrementAndGet();
+				Date otherExpiry = f.getLeaseExpiry();
+				schedule.schedule(f.getId(), otherExpiry != null
+						&& otherExpiry.after(expiry) ? otherExpiry.getTime()
+						: expiry.getTime());
+			}
 		}
+		takeQueue.addAll(feeds);
 
-		feedDAO.saveOrUpdate(map.values());
+		applyHostLimits();
+		hostLimiter.evictIdle();
+		return feeds.size();
 	}
 
+	/**
+	 * Reads the host limits from the settings, changes apply at the next
+	 * refill
+	 */
+	private void applyHostLimits() {
+		ApplicationSettings settings = applicationSettingsService.get();
+		hostLimiter.setLimits(settings.getHostMaxConcurrent(),
+				settings.getHostBurst(), settings.getHostRequestsPerMinute());
+	}
+
+	/**
+	 * Called when the refresh of the feed is over, reschedules it, extends its
+	 * lease past its next due time and queues its new state for writing
+	 */
 	public void giveBack(Feed feed) {
-		giveBackQueue.add(feed);
+		Date now = Calendar.getInstance().getTime();
+		feed.setLastUpdated(now);
+		long due = getDueTime(feed.getLastUpdated(), feed.getDisabledUntil(),
+				feed.getSubscriberCount(), feed.getLastSubscriberLogin(), now);
+		schedule.schedule(feed.getId(), due);
+		// other nodes only take the feed over if this node is late
+		feed.setLeaseExpiry(new Date(Math.max(due, now.getTime())
+				+ LEASE_MILLIS));
+
+		Long requested = priorityRequests.remove(feed.getId());
+		if (requested != null) {
+			priorityCompleted.incrementAndGet();
+			Date lastChange = feed.getLastContentChange();
+			if (lastChange != null && lastChange.getTime() >= requested) {
+				long duration = now.getTime() - requested;
+				priorityWithEntries.incrementAndGet();
+				totalPriorityMillis.addAndGet(duration);
+				lastPriorityMillis = duration;
+				maxPriorityMillis = Math.max(maxPriorityMillis, duration);
+			}
+		}
+		feedStateWriter.write(feed);
+	}
+
+	/**
+	 * Called when the http request for this feed completed, frees the host
+	 * slot
+	 */
+	public void fetched(Feed feed) {
+		hostLimiter.release(feed);
+		if (hostLimiter.getDeferredCount() > 0) {
+			wakeUp();
+		}
+	}
+
+	public int getScheduledCount() {
+		return schedule.size();
+	}
+
+	public int getDueCount() {
+		return schedule.getDueCount(System.currentTimeMillis());
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public RefillStatistics getRefillStatistics() {
+		RefillStatistics stats = new RefillStatistics();
+		stats.leasesLost = leasesLost.get();
+		stats.notDue = notDue.get();
+		stats.queued = takeQueue.size();
+		stats.refills = refills.get();
+		stats.lastSize = lastRefillSize;
+		stats.lastMillis = lastRefillMillis;
+		stats.maxMillis = maxRefillMillis;
+		if (stats.refills > 0) {
+			stats.averageMillis = totalRefillMillis.get() / stats.refills;
+		}
+		return stats;
+	}
+
+	public PriorityStatistics getPriorityStatistics() {
+		PriorityStatistics stats = new PriorityStatistics();
+		stats.queued = priorityRequests.size();
+		stats.requested = priorityRequested.get();
+		stats.deduplicated = priorityDeduplicated.get();
+		stats.rateLimited = priorityRateLimited.get();
+		stats.completed = priorityCompleted.get();
+		stats.withNewEntries = priorityWithEntries.get();
+		stats.lastMillis = lastPriorityMillis;
+		stats.maxMillis = maxPriorityMillis;
+		if (stats.withNewEntries > 0) {
+			stats.averageMillis = totalPriorityMillis.get()
+					/ stats.withNewEntries;
+		}
+		return stats;
+	}
+
+	public List<HostStatistics> getHostStatistics(int limit) {
+		return hostLimiter.getStatistics(limit);
+	}
+
+	public static class RefillStatistics {
+		private int queued;
+		private long refills;
+		private int lastSize;
+		private long lastMillis;
+		private long averageMillis;
+		private long maxMillis;
+		private long leasesLost;
+		private long notDue;
+
+		/**
+		 * feeds waiting to be fetched
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		public long getRefills() {
+			return refills;
+		}
+
+		/**
+		 * feeds queued by the last refill
+		 */
+		public int getLastSize() {
+			return lastSize;
+		}
+
+		public long getLastMillis() {
+			return lastMillis;
+		}
+
+		public long getAverageMillis() {
+			return averageMillis;
+		}
+
+		public long getMaxMillis() {
+			return maxMillis;
+		}
+
+		/**
+		 * due feeds skipped because another node holds them
+		 */
+		public long getLeasesLost() {
+			return leasesLost;
+		}
+
+		/**
+		 * due feeds skipped because another node refreshed them since
+		 */
+		public long getNotDue() {
+			return notDue;
+		}
+	}
+
+	public static class PriorityStatistics {
+		private int queued;
+		private long requested;
+		private long deduplicated;
+		private long rateLimited;
+		private long completed;
+		private long withNewEntries;
+		private long lastMillis;
+		private long averageMillis;
+		private long maxMillis;
+
+		/**
+		 * feeds in the lane or being refreshed from it
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		public long getRequested() {
+			return requested;
+		}
+
+		/**
+		 * requests for a feed that was already in the lane
+		 */
+		public long getDeduplicated() {
+			return deduplicated;
+		}
+
+		/**
+		 * requests over the per user limit, left to the schedule
+		 */
+		public long getRateLimited() {
+			return rateLimited;
+		}
+
+		public long getCompleted() {
+			return completed;
+		}
+
+		/**
+		 * refreshes from the lane that found new entries
+		 */
+		public long getWithNewEntries() {
+			return withNewEntries;
+		}
+
+		/**
+		 * time from the request to the new entries, for the last refresh
+		 * that found some
+		 */
+		public long getLastMillis() {
+			return lastMillis;
+		}
+
+		public long getAverageMillis() {
+			return averageMillis;
+		}
+
+		public long getMaxMillis() {
+			return maxMillis;
+		}
 	}
 
 }
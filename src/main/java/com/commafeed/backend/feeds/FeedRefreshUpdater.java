@@ -4,12 +4,14 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -17,6 +19,7 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.mutable.MutableInt;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +35,13 @@ import com.commafeed.backend.model.FeedSubscription;
 import com.commafeed.backend.pubsubhubbub.SubscriptionHandler;
 import com.commafeed.backend.services.ApplicationSettingsService;
 import com.commafeed.backend.services.FeedUpdateService;
-import com.google.common.util.concurrent.Striped;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @Singleton
 public class FeedRefreshUpdater {
@@ -40,6 +49,9 @@ public class FeedRefreshUpdater {
 	protected static Logger log = LoggerFactory
 			.getLogger(FeedRefreshUpdater.class);
 
+	private static final int LOOKUP_BATCH_SIZE = 200;
+	private static final int MAX_ATTEMPTS = 3;
+
 	@Inject
 	FeedUpdateService feedUpdateService;
 
@@ -64,20 +76,29 @@ public class FeedRefreshUpdater {
 	@Inject
 	FeedEntryDAO feedEntryDAO;
 
-	private ThreadPoolExecutor pool;
-	private BlockingQueue<Runnable> queue;
-	private Striped<Lock> locks;
+	@Inject
+	KnownEntryFilter knownEntryFilter;
+
+	/**
+	 * single thread executors, the entries are routed by guid hash so that
+	 * two threads never update the same entry
+	 */
+	private List<ThreadPoolExecutor> partitions;
+
+	private AtomicLong feedCount = new AtomicLong();
+	private AtomicLong entryCount = new AtomicLong();
+	private AtomicLong queries = new AtomicLong();
+	private AtomicLong commits = new AtomicLong();
+	private AtomicLong rows = new AtomicLong();
+	private AtomicLong retries = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
 
 	@PostConstruct
 	public void init() {
 		ApplicationSettings settings = applicationSettingsService.get();
 		int threads = Math.max(settings.getDatabaseUpdateThreads(), 1);
-		log.info("Creating database pool with {} threads", threads);
-		locks = Striped.lazyWeakLock(threads * 1000);
-		pool = new ThreadPoolExecutor(threads, threads, 0,
-				TimeUnit.MILLISECONDS,
-				queue = new ArrayBlockingQueue<Runnable>(500 * threads));
-		pool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+		log.info("Creating {} database update partitions", threads);
+		RejectedExecutionHandler waitForQueue = new RejectedExecutionHandler() {
 			@Override
 			public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
 				log.debug("Thread queue full, waiting...");
@@ -87,78 +108,244 @@ public class FeedRefreshUpdater {
 					log.error("Interrupted while waiting for queue.", e);
 				}
 			}
-		});
+		};
+		partitions = Lists.newArrayList();
+		for (int i = 0; i < threads; i++) {
+			ThreadPoolExecutor partition = new ThreadPoolExecutor(1, 1, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							500), new ThreadFactoryBuilder().setNameFormat(
+							"feed-updater-" + i).build());
+			partition.setRejectedExecutionHandler(waitForQueue);
+			partitions.add(partition);
+		}
 	}
 
 	@PreDestroy
 	public void shutdown() {
-		pool.shutdownNow();
-		while (!pool.isTerminated()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				log.error("interrupted while waiting for threads to finish.");
+		for (ThreadPoolExecutor partition : partitions) {
+			partition.shutdownNow();
+		}
+		for (ThreadPoolExecutor partition : partitions) {
+			while (!partition.isTerminated()) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					log.error("interrupted while waiting for threads to finish.");
+				}
 			}
 		}
 	}
 
+	/**
+	 * Splits the entries by partition of their guid hash. The feed is
+	 * finished by the last partition done with its entries
+	 */
 	public void updateFeed(Feed feed, Collection<FeedEntry> entries) {
-		pool.execute(new Task(feed, entries));
+		ListMultimap<Integer, FeedEntry> parts = ArrayListMultimap.create();
+		for (FeedEntry entry : entries) {
+			parts.put(partition(entry.getGuidHash()), entry);
+		}
+
+		FeedUpdate update = new FeedUpdate(feed, entries, Math.max(
+				parts.keySet().size(), 1));
+		if (parts.isEmpty()) {
+			partitions.get(partition(feed.getUrl())).execute(
+					new Part(update, Lists.<FeedEntry> newArrayList()));
+		}
+		for (Integer partition : parts.keySet()) {
+			partitions.get(partition).execute(
+					new Part(update, parts.get(partition)));
+		}
+	}
+
+	private int partition(String hash) {
+		return (StringUtils.trimToEmpty(hash).hashCode() & Integer.MAX_VALUE)
+				% partitions.size();
 	}
 
-	private class Task implements Runnable {
+	/**
+	 * The entries of a feed handled by one partition
+	 */
+	private class Part implements Runnable {
+
+		private FeedUpdate update;
+		private List<FeedEntry> entries;
+
+		public Part(FeedUpdate update, List<FeedEntry> entries) {
+			this.update = update;
+			this.entries = entries;
+		}
+
+		@Override
+		public void run() {
+			boolean ok = false;
+			MutableInt inserted = new MutableInt();
+			try {
+				ok = entries.isEmpty()
+						|| updateEntries(update.feed, entries,
+								update.subscriptions.get(), inserted);
+			} catch (Exception e) {
+				log.error("could not update entries of " + update.feed.getUrl()
+						+ " : " + e.getMessage(), e);
+			} finally {
+				update.partDone(ok, inserted.intValue());
+			}
+		}
+	}
+
+	private class FeedUpdate {
 
 		private Feed feed;
 		private Collection<FeedEntry> entries;
+		private AtomicInteger pendingParts;
+		private AtomicInteger inserted = new AtomicInteger();
+		private AtomicBoolean ok = new AtomicBoolean(true);
 
-		public Task(Feed feed, Collection<FeedEntry> entries) {
+		/**
+		 * loaded by the first partition that needs them
+		 */
+		private Supplier<List<FeedSubscription>> subscriptions = Suppliers
+				.memoize(new Supplier<List<FeedSubscription>>() {
+					@Override
+					public List<FeedSubscription> get() {
+						queries.incrementAndGet();
+						return feedSubscriptionDAO.findByFeed(feed);
+					}
+				});
+
+		public FeedUpdate(Feed feed, Collection<FeedEntry> entries, int parts) {
 			this.feed = feed;
 			this.entries = entries;
+			this.pendingParts = new AtomicInteger(parts);
 		}
 
-		@Override
-		public void run() {
-			boolean ok = true;
-			if (entries.isEmpty() == false) {
-				List<FeedSubscription> subscriptions = feedSubscriptionDAO
-						.findByFeed(feed);
-				for (FeedEntry entry : entries) {
-					ok &= updateEntry(feed, entry, subscriptions);
-				}
+		public void partDone(boolean partOk, int partInserted) {
+			inserted.addAndGet(partInserted);
+			if (!partOk) {
+				ok.set(false);
 			}
+			if (pendingParts.decrementAndGet() == 0) {
+				finish();
+			}
+		}
+
+		private void finish() {
+			feedCount.incrementAndGet();
+			entryCount.addAndGet(entries.size());
 
 			if (applicationSettingsService.get().isPubsubhubbub()) {
 				handlePubSub(feed);
 			}
-			if (!ok) {
+
+			Date now = Calendar.getInstance().getTime();
+			FeedRefreshModel.recordRefresh(feed,
+					Lists.newArrayList(entries), inserted.get(), now);
+			if (ok.get() && applicationSettingsService.get().isHeavyLoad()) {
+				feed.setDisabledUntil(FeedRefreshModel.buildDisabledUntil(
+						feed, now));
+			} else {
 				feed.setDisabledUntil(null);
 			}
+			if (!ok.get()) {
+				// some entries were not stored, process the same content again
+				feed.setLastContentHash(null);
+			}
 			metricsBean.feedUpdated();
 			taskGiver.giveBack(feed);
 		}
 	}
 
-	private boolean updateEntry(final Feed feed, final FeedEntry entry,
-			final List<FeedSubscription> subscriptions) {
-		String key = StringUtils.trimToEmpty(entry.getGuid() + entry.getUrl());
-		Lock lock = locks.get(key);
-		boolean locked = false;
-		try {
-			locked = lock.tryLock(1, TimeUnit.MINUTES);
-			if (locked) {
-				feedUpdateService.updateEntry(feed, entry, subscriptions);
-			} else {
-				log.error("lock timeout for " + feed.getUrl() + " - " + key);
+	/**
+	 * Looks up the stored entries in one query per batch, then inserts or
+	 * links them in a single transaction. Only called by the partition of the
+	 * entries, no other thread of this node updates them in the meantime. The
+	 * transaction is retried if it conflicts with another node. Returns false
+	 * if the entries could not be stored, increments inserted for each entry
+	 * new for this feed
+	 */
+	private boolean updateEntries(Feed feed, Collection<FeedEntry> entries,
+			List<FeedSubscription> subscriptions, MutableInt inserted) {
+		for (int attempt = 1;; attempt++) {
+			ListMultimap<String, FeedEntry> stored = findStoredEntries(entries);
+			List<FeedEntry> pending = Lists.newArrayList();
+			for (FeedEntry entry : entries) {
+				FeedEntry foundEntry = FeedUtils.findEntry(
+						stored.get(entry.getGuidHash()), entry);
+				if (foundEntry == null
+						|| FeedUtils.findFeed(foundEntry.getFeeds(), feed) == null) {
+					pending.add(entry);
+				}
+			}
+			if (pending.isEmpty()) {
+				return true;
 			}
-		} catch (InterruptedException e) {
-			log.error("interrupted while waiting for lock for " + feed.getUrl()
-					+ " : " + e.getMessage(), e);
-		} finally {
-			if (locked) {
-				lock.unlock();
+
+			try {
+				MutableInt statuses = new MutableInt();
+				List<FeedEntry> updates = feedUpdateService.updateEntries(
+						feed, pending, stored, subscriptions, statuses);
+				commits.incrementAndGet();
+				rows.addAndGet(updates.size() + statuses.intValue());
+				inserted.add(updates.size());
+				for (FeedEntry update : updates) {
+					knownEntryFilter.put(update.getGuidHash());
+				}
+				return true;
+			} catch (Exception e) {
+				resetEntries(pending);
+				if (attempt >= MAX_ATTEMPTS) {
+					failures.incrementAndGet();
+					log.error("could not update entries of " + feed.getUrl()
+							+ " : " + e.getMessage(), e);
+					return false;
+				}
+				retries.incrementAndGet();
+				log.warn("could not update entries of {}, retrying : {}",
+						feed.getUrl(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Clears what a rolled back transaction left on the entries so that they
+	 * can be inserted again
+	 */
+	private void resetEntries(List<FeedEntry> entries) {
+		for (FeedEntry entry : entries) {
+			entry.setId(null);
+			entry.getContent().setId(null);
+			entry.setFeeds(Sets.<Feed> newHashSet());
+		}
+	}
+
+	/**
+	 * Returns the stored entries with the same guid as the given entries, by
+	 * guid hash. Entries the filter has never seen are not looked up.
+	 */
+	private ListMultimap<String, FeedEntry> findStoredEntries(
+			Collection<FeedEntry> entries) {
+		Set<String> guids = Sets.newLinkedHashSet();
+		for (FeedEntry entry : entries) {
+			if (knownEntryFilter.mightContain(entry.getGuidHash())) {
+				guids.add(entry.getGuid());
 			}
 		}
-		return locked;
+
+		ListMultimap<String, FeedEntry> stored = ArrayListMultimap.create();
+		for (List<String> batch : Lists.partition(Lists.newArrayList(guids),
+				LOOKUP_BATCH_SIZE)) {
+			for (FeedEntry entry : feedEntryDAO.findByGuids(batch)) {
+				stored.put(entry.getGuidHash(), entry);
+			}
+			queries.incrementAndGet();
+		}
+
+		for (FeedEntry entry : entries) {
+			if (guids.contains(entry.getGuid())) {
+				knownEntryFilter.confirm(stored.containsKey(entry.getGuidHash()));
+			}
+		}
+		return stored;
 	}
 
 	private void handlePubSub(final Feed feed) {
@@ -177,7 +364,98 @@ public class FeedRefreshUpdater {
 	}
 
 	public int getQueueSize() {
-		return queue.size();
+		int size = 0;
+		for (ThreadPoolExecutor partition : partitions) {
+			size += partition.getQueue().size();
+		}
+		return size;
+	}
+
+	public UpdaterStatistics getStatistics() {
+		UpdaterStatistics stats = new UpdaterStatistics();
+		stats.feeds = feedCount.get();
+		stats.entries = entryCount.get();
+		stats.queries = queries.get();
+		stats.commits = commits.get();
+		stats.rows = rows.get();
+		stats.retries = retries.get();
+		stats.failures = failures.get();
+		for (ThreadPoolExecutor partition : partitions) {
+			stats.queueSizes.add(partition.getQueue().size());
+		}
+		return stats;
+	}
+
+	public static class UpdaterStatistics {
+		private long feeds;
+		private long entries;
+		private long queries;
+		private long commits;
+		private long rows;
+		private long retries;
+		private long failures;
+		private List<Integer> queueSizes = Lists.newArrayList();
+
+		public long getFeeds() {
+			return feeds;
+		}
+
+		public long getEntries() {
+			return entries;
+		}
+
+		/**
+		 * subscription and entry lookups
+		 */
+		public long getQueries() {
+			return queries;
+		}
+
+		/**
+		 * transactions storing the entries of a feed
+		 */
+		public long getCommits() {
+			return commits;
+		}
+
+		/**
+		 * entries inserted or linked and statuses inserted
+		 */
+		public long getRows() {
+			return rows;
+		}
+
+		public double getRowsPerCommit() {
+			return commits == 0 ? 0 : (double) rows / commits;
+		}
+
+		/**
+		 * transactions rolled back and tried again
+		 */
+		public long getRetries() {
+			return retries;
+		}
+
+		/**
+		 * feeds whose entries could not be stored after all attempts
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * feed parts waiting in the queue of each partition
+		 */
+		public List<Integer> getQueueSizes() {
+			return queueSizes;
+		}
+
+		/**
+		 * average lookups and transactions to update a feed
+		 */
+		public double getRoundTripsPerFeed() {
+			return feeds == 0 ? 0 : (double) (queries + commits) / feeds;
+		}
 	}
 
 }
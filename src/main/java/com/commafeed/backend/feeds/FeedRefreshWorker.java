@@ -3,26 +3,49 @@ package com.commafeed.backend.feeds;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
-import org.apache.commons.lang.mutable.MutableBoolean;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.commafeed.backend.HttpGetter;
+import com.commafeed.backend.HttpGetter.HttpResult;
 import com.commafeed.backend.HttpGetter.NotModifiedException;
 import com.commafeed.backend.MetricsBean;
-import com.commafeed.backend.dao.FeedEntryDAO;
+import com.commafeed.backend.model.ApplicationSettings;
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedEntry;
 import com.commafeed.backend.services.ApplicationSettingsService;
+import com.commafeed.backend.services.FeedService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.syndication.io.FeedException;
 
+/**
+ * Fetches feeds with the non-blocking http client and parses them in a pool
+ * of background threads. Thousands of requests can be in flight while only
+ * the parsing is bound to the number of threads.
+ */
+@Singleton
 public class FeedRefreshWorker {
 
 	private static Logger log = LoggerFactory
 			.getLogger(FeedRefreshWorker.class);
 
+	private static final int DEFAULT_REDIRECT_THRESHOLD = 3;
+
 	@Inject
 	FeedRefreshUpdater feedRefreshUpdater;
 
@@ -39,61 +62,122 @@ public class FeedRefreshWorker {
 	MetricsBean metricsBean;
 
 	@Inject
-	FeedEntryDAO feedEntryDAO;
+	HttpGetter getter;
 
-	public void start(MutableBoolean running, String threadName) {
-		log.info("{} starting", threadName);
+	@Inject
+	FeedService feedService;
 
-		try {
-			// sleeping before starting, let everything settle
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-			log.error(threadName + e.getMessage(), e);
-		}
+	private ThreadPoolExecutor pool;
+	private Semaphore inFlight;
 
-		while (running.isTrue()) {
-			Feed feed = null;
+	@PostConstruct
+	public void init() {
+		ApplicationSettings settings = applicationSettingsService.get();
+		int threads = Math.max(settings.getBackgroundThreads(), 1);
+		log.info("Creating parsing pool with {} threads", threads);
+		// the queue is bounded by the permits, a permit is held from the
+		// request until its body is parsed
+		pool = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("feed-parser-%d")
+						.build());
+		inFlight = new Semaphore(getter.getAsyncMaxConnections());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+		while (!pool.isTerminated()) {
 			try {
-				feed = getNextFeed();
-				if (feed != null) {
-					log.debug("refreshing " + feed.getUrl());
-					update(feed);
-				} else {
-					log.debug("sleeping");
-					metricsBean.threadWaited();
-					Thread.sleep(15000);
-				}
+				Thread.sleep(100);
 			} catch (InterruptedException e) {
-				log.info(threadName + " interrupted");
-				return;
-			} catch (Exception e) {
-				String feedUrl = "feed is null";
-				if (feed != null) {
-					feedUrl = feed.getUrl();
-				}
-				log.error(
-						threadName + " (" + feedUrl + ") : " + e.getMessage(),
-						e);
+				log.error("interrupted while waiting for threads to finish.");
 			}
 		}
 	}
 
-	private void update(Feed feed) {
-		Date now = Calendar.getInstance().getTime();
+	/**
+	 * Starts fetching the feed, blocks only if too many requests are already
+	 * in flight or waiting to be parsed
+	 */
+	public void updateFeed(final Feed feed) throws InterruptedException {
+		log.debug("refreshing {}", feed.getUrl());
+		inFlight.acquire();
+
+		ListenableFuture<HttpResult> future = null;
 		try {
-			FetchedFeed fetchedFeed = fetcher.fetch(feed.getUrl(), false,
-					feed.getLastModifiedHeader(), feed.getEtagHeader());
-			// stops here if NotModifiedException or any other exception is
-			// thrown
-			List<FeedEntry> entries = fetchedFeed.getEntries();
+			future = fetcher.fetchAsync(feed);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			taskGiver.fetched(feed);
+			throw e;
+		}
+
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				taskGiver.fetched(feed);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+		Futures.addCallback(future, new FutureCallback<HttpResult>() {
+			@Override
+			public void onSuccess(HttpResult result) {
+				try {
+					update(feed, result);
+				} finally {
+					inFlight.release();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				try {
+					if (t instanceof NotModifiedException) {
+						metricsBean.feedNotModified();
+						String location = ((NotModifiedException) t)
+								.getPermanentRedirect();
+						if (handleRedirect(feed, location)) {
+							taskGiver.giveBack(feed);
+							return;
+						}
+						notModified(feed);
+					} else {
+						error(feed, t);
+					}
+				} finally {
+					inFlight.release();
+				}
+			}
+		}, pool);
+	}
+
+	private void update(Feed feed, HttpResult result) {
+		if (handleRedirect(feed, result.getPermanentRedirect())) {
+			taskGiver.giveBack(feed);
+			return;
+		}
 
-			Date disabledUntil = null;
-			if (applicationSettingsService.get().isHeavyLoad()) {
-				disabledUntil = FeedUtils.buildDisabledUntil(
-						fetchedFeed.getPublishedDate(), entries);
+		String hash = null;
+		if (result.getContent() != null) {
+			hash = DigestUtils.sha1Hex(result.getContent());
+			if (hash.equals(feed.getLastContentHash())) {
+				log.debug("Feed content unchanged : " + feed.getUrl());
+				metricsBean.feedSoftNotModified();
+				// the server may have changed its validators only, keep them
+				// to get real 304s next time
+				feed.setLastModifiedHeader(result.getLastModifiedSince());
+				feed.setEtagHeader(FeedUtils.truncate(result.geteTag(), 255));
+				notModified(feed);
+				return;
 			}
+		}
+
+		try {
+			FetchedFeed fetchedFeed = fetcher.parse(feed.getUrl(), result);
+			// stops here if any exception is thrown
+			List<FeedEntry> entries = fetchedFeed.getEntries();
 
-			feed.setLastUpdateSuccess(now);
 			feed.setLink(fetchedFeed.getFeed().getLink());
 			feed.setLastModifiedHeader(fetchedFeed.getFeed()
 					.getLastModifiedHeader());
@@ -101,58 +185,95 @@ public class FeedRefreshWorker {
 
 			feed.setErrorCount(0);
 			feed.setMessage(null);
-			feed.setDisabledUntil(disabledUntil);
+			feed.setLastContentHash(hash);
 
+			// the refresh model is updated once the entries are stored
 			handlePubSub(feed, fetchedFeed);
 			feedRefreshUpdater.updateFeed(feed, entries);
 
-		} catch (NotModifiedException e) {
-			log.debug("Feed not modified (304) : " + feed.getUrl());
-
-			Date disabledUntil = null;
-			if (applicationSettingsService.get().isHeavyLoad()) {
-
-				Date lastUpdateSuccess = feed.getLastUpdateSuccess();
-				Date lastDisabledUntil = feed.getDisabledUntil();
-				if (feed.getErrorCount() == 0 && lastUpdateSuccess != null
-						&& lastDisabledUntil != null
-						&& lastUpdateSuccess.before(lastDisabledUntil)) {
-					long millis = now.getTime() + lastDisabledUntil.getTime()
-							- lastUpdateSuccess.getTime();
-					disabledUntil = new Date(millis);
-				} else {
-					List<FeedEntry> feedEntries = feedEntryDAO.findByFeed(feed,
-							0, 10);
-
-					Date publishedDate = null;
-					if (feedEntries.size() > 0) {
-						publishedDate = feedEntries.get(0).getInserted();
-					}
-					disabledUntil = FeedUtils.buildDisabledUntil(publishedDate,
-							feedEntries);
-				}
-			}
-			feed.setErrorCount(0);
-			feed.setMessage(null);
-			feed.setDisabledUntil(disabledUntil);
-
-			taskGiver.giveBack(feed);
 		} catch (Exception e) {
-			String message = "Unable to refresh feed " + feed.getUrl() + " : "
-					+ e.getMessage();
-			if (e instanceof FeedException) {
-				log.debug(e.getClass().getName() + " " + message);
-			} else {
-				log.debug(e.getClass().getName() + " " + message);
-			}
+			error(feed, e);
+		}
+	}
 
-			feed.setErrorCount(feed.getErrorCount() + 1);
-			feed.setMessage(message);
-			feed.setDisabledUntil(FeedUtils.buildDisabledUntil(feed
-					.getErrorCount()));
+	private void notModified(Feed feed) {
+		log.debug("Feed not modified (304) : " + feed.getUrl());
+		Date now = Calendar.getInstance().getTime();
 
-			taskGiver.giveBack(feed);
+		FeedRefreshModel.recordRefresh(feed, null, 0, now);
+		Date disabledUntil = null;
+		if (applicationSettingsService.get().isHeavyLoad()) {
+			disabledUntil = FeedRefreshModel.buildDisabledUntil(feed, now);
 		}
+		feed.setErrorCount(0);
+		feed.setMessage(null);
+		feed.setDisabledUntil(disabledUntil);
+
+		taskGiver.giveBack(feed);
+	}
+
+	private void error(Feed feed, Throwable e) {
+		String message = "Unable to refresh feed " + feed.getUrl() + " : "
+				+ e.getMessage();
+		if (e instanceof FeedException) {
+			log.debug(e.getClass().getName() + " " + message);
+		} else {
+			log.debug(e.getClass().getName() + " " + message);
+		}
+
+		feed.setErrorCount(feed.getErrorCount() + 1);
+		feed.setMessage(FeedUtils.truncate(message, 1024));
+		FeedRefreshModel.recordError(feed);
+		feed.setDisabledUntil(FeedRefreshModel.buildErrorDisabledUntil(feed,
+				Calendar.getInstance().getTime()));
+
+		taskGiver.giveBack(feed);
+	}
+
+	/**
+	 * Counts consecutive permanent redirects to the same url and changes the
+	 * url of the feed once there are enough of them. Returns true if the feed
+	 * was merged into an existing feed and should not be processed.
+	 */
+	private boolean handleRedirect(Feed feed, String location) {
+		if (location == null || location.equals(feed.getUrl())
+				|| location.length() > 2048) {
+			feed.setRedirectUrl(null);
+			feed.setRedirectCount(0);
+			return false;
+		}
+
+		if (location.equals(feed.getRedirectUrl())) {
+			feed.setRedirectCount(feed.getRedirectCount() + 1);
+		} else {
+			feed.setRedirectUrl(location);
+			feed.setRedirectCount(1);
+		}
+
+		int threshold = applicationSettingsService.get()
+				.getPermanentRedirectThreshold();
+		if (feed.getRedirectCount() < (threshold > 0 ? threshold
+				: DEFAULT_REDIRECT_THRESHOLD)) {
+			return false;
+		}
+
+		log.info("feed {} moved permanently to {}", feed.getUrl(), location);
+		feed.setRedirectUrl(null);
+		feed.setRedirectCount(0);
+		Feed target = null;
+		try {
+			target = feedService.moveFeed(feed, location);
+		} catch (Exception e) {
+			log.error("could not move feed " + feed.getUrl() + " : "
+					+ e.getMessage(), e);
+			return false;
+		}
+		if (target.getId().equals(feed.getId())) {
+			return false;
+		}
+		// the subscriptions now belong to the other feed
+		taskGiver.add(target);
+		return true;
 	}
 
 	private void handlePubSub(Feed feed, FetchedFeed fetchedFeed) {
@@ -176,8 +297,16 @@ public class FeedRefreshWorker {
 		}
 	}
 
-	private Feed getNextFeed() {
-		return taskGiver.take();
+	/**
+	 * requests in flight or waiting to be parsed
+	 */
+	public int getInFlightCount() {
+		return getter.getAsyncMaxConnections()
+				- inFlight.availablePermits();
+	}
+
+	public int getQueueSize() {
+		return pool.getQueue().size();
 	}
 
 }
@@ -0,0 +1,252 @@
+package com.commafeed.backend.feeds;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Min-heap of feed ids ordered by the time they are due for a refresh. Ids and
+ * due times are kept in primitive arrays, a primitive hash map keeps the
+ * position of each id in the heap so that a feed can be rescheduled or removed
+ * in O(log n).
+ */
+public class FeedSchedule {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] ids = new long[INITIAL_CAPACITY];
+	private long[] dues = new long[INITIAL_CAPACITY];
+	private int size;
+	private PositionMap positions = new PositionMap();
+
+	/**
+	 * Adds the feed or updates its due time if already scheduled
+	 */
+	public synchronized void schedule(long id, long due) {
+		int pos = positions.get(id);
+		if (pos < 0) {
+			ensureCapacity(size + 1);
+			ids[size] = id;
+			dues[size] = due;
+			positions.put(id, size);
+			size++;
+			siftUp(size - 1);
+		} else {
+			long previous = dues[pos];
+			dues[pos] = due;
+			if (due < previous) {
+				siftUp(pos);
+			} else {
+				siftDown(pos);
+			}
+		}
+	}
+
+	/**
+	 * Moves the due time of the feed earlier, does nothing if the feed is not
+	 * scheduled or already due before
+	 */
+	public synchronized void advance(long id, long due) {
+		int pos = positions.get(id);
+		if (pos >= 0 && due < dues[pos]) {
+			dues[pos] = due;
+			siftUp(pos);
+		}
+	}
+
+	public synchronized void remove(long id) {
+		int pos = positions.remove(id);
+		if (pos < 0) {
+			return;
+		}
+		size--;
+		if (pos == size) {
+			return;
+		}
+		long previous = dues[pos];
+		move(size, pos);
+		if (dues[pos] < previous) {
+			siftUp(pos);
+		} else {
+			siftDown(pos);
+		}
+	}
+
+	/**
+	 * Removes and returns at most count ids that are due at the given time,
+	 * earliest first
+	 */
+	public synchronized List<Long> pollDue(long now, int count) {
+		List<Long> result = Lists.newArrayList();
+		while (size > 0 && result.size() < count && dues[0] <= now) {
+			long id = ids[0];
+			remove(id);
+			result.add(id);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the earliest due time, or Long.MAX_VALUE if nothing is scheduled
+	 */
+	public synchronized long peekDue() {
+		return size > 0 ? dues[0] : Long.MAX_VALUE;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized int getDueCount(long now) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (dues[i] <= now) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > ids.length) {
+			int length = Math.max(capacity, ids.length * 2);
+			ids = Arrays.copyOf(ids, length);
+			dues = Arrays.copyOf(dues, length);
+		}
+	}
+
+	private void move(int from, int to) {
+		ids[to] = ids[from];
+		dues[to] = dues[from];
+		positions.put(ids[to], to);
+	}
+
+	private void siftUp(int pos) {
+		long id = ids[pos];
+		long due = dues[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (dues[parent] <= due) {
+				break;
+			}
+			move(parent, pos);
+			pos = parent;
+		}
+		ids[pos] = id;
+		dues[pos] = due;
+		positions.put(id, pos);
+	}
+
+	private void siftDown(int pos) {
+		long id = ids[pos];
+		long due = dues[pos];
+		int half = size >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+			if (right < size && dues[right] < dues[child]) {
+				child = right;
+			}
+			if (due <= dues[child]) {
+				break;
+			}
+			move(child, pos);
+			pos = child;
+		}
+		ids[pos] = id;
+		dues[pos] = due;
+		positions.put(id, pos);
+	}
+
+	/**
+	 * Open addressing map from feed id to heap position, without boxing.
+	 * Positions are stored plus one so that 0 marks an empty slot, removals
+	 * shift the following entries back instead of leaving tombstones.
+	 */
+	private static class PositionMap {
+
+		private long[] keys = new long[16];
+		private int[] values = new int[16];
+		private int size;
+
+		/**
+		 * Returns the position of the id, or -1 if it is not in the map
+		 */
+		private int get(long key) {
+			int mask = keys.length - 1;
+			for (int i = slot(key, mask); values[i] != 0; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private void put(long key, int value) {
+			if ((size + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] != 0) {
+				if (keys[i] == key) {
+					values[i] = value + 1;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value + 1;
+			size++;
+		}
+
+		/**
+		 * Removes the id and returns its position, or -1 if it was not in the
+		 * map
+		 */
+		private int remove(long key) {
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (values[i] != 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (values[i] == 0) {
+				return -1;
+			}
+			int removed = values[i] - 1;
+			int gap = i;
+			for (int j = (gap + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+				// the entry can fill the gap if the gap is between its own
+				// slot and where it is now
+				int home = slot(keys[j], mask);
+				if (((j - home) & mask) >= ((j - gap) & mask)) {
+					keys[gap] = keys[j];
+					values[gap] = values[j];
+					gap = j;
+				}
+			}
+			values[gap] = 0;
+			size--;
+			return removed;
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[capacity];
+			values = new int[capacity];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != 0) {
+					put(oldKeys[i], oldValues[i] - 1);
+				}
+			}
+		}
+
+		private static int slot(long key, int mask) {
+			long hash = key * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+	}
+}
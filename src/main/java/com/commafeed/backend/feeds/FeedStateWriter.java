@@ -0,0 +1,249 @@
+package com.commafeed.backend.feeds;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.commafeed.backend.dao.FeedDAO;
+import com.commafeed.backend.model.Feed;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects the feeds coming back from a refresh and writes their state to the
+ * database in batches, either when enough feeds are pending or periodically.
+ * A feed given back several times before a flush is written once.
+ */
+@Singleton
+public class FeedStateWriter {
+
+	private static Logger log = LoggerFactory.getLogger(FeedStateWriter.class);
+
+	private static final int BATCH_SIZE = 100;
+	private static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+	/**
+	 * flushes that try to write the state of a feed before it is dropped
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	@Inject
+	FeedDAO feedDAO;
+
+	private ConcurrentMap<Long, Feed> pending = Maps.newConcurrentMap();
+
+	/**
+	 * failed writes of the feeds whose state could not be written yet
+	 */
+	private Map<Long, Integer> failures = Maps.newHashMap();
+	private ScheduledExecutorService executor;
+	private AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private AtomicLong flushes = new AtomicLong();
+	private AtomicLong written = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong totalFlushMillis = new AtomicLong();
+	private volatile long maxFlushMillis;
+	private volatile int lastBatchSize;
+
+	private Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushRequested.set(false);
+			try {
+				flush();
+			} catch (Exception e) {
+				log.error("could not write feed states : " + e.getMessage(), e);
+			}
+		}
+	};
+
+	@PostConstruct
+	public void init() {
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+				.setNameFormat("feed-state-writer").setDaemon(true).build());
+		executor.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL_MILLIS,
+				FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+			flush();
+		} catch (InterruptedException e) {
+			log.error("interrupted while waiting for the writer to finish.");
+		} catch (Exception e) {
+			log.error("could not write feed states : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Queues the feed for writing, never blocks
+	 */
+	public void write(Feed feed) {
+		pending.put(feed.getId(), feed);
+		if (pending.size() >= BATCH_SIZE
+				&& flushRequested.compareAndSet(false, true)) {
+			executor.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Writes the pending feeds in batches. If a batch fails, its feeds are
+	 * written one by one so that a bad row only affects its own feed. A feed
+	 * that keeps failing is tried again at the next flushes and then dropped.
+	 */
+	private synchronized void flush() {
+		List<Feed> failed = Lists.newArrayList();
+		while (!pending.isEmpty()) {
+			List<Feed> batch = Lists.newArrayList();
+			for (Long id : pending.keySet()) {
+				Feed feed = pending.remove(id);
+				if (feed != null) {
+					batch.add(feed);
+				}
+				if (batch.size() >= BATCH_SIZE) {
+					break;
+				}
+			}
+
+			long start = System.currentTimeMillis();
+			int count = batch.size();
+			try {
+				feedDAO.updateRefreshState(batch);
+				for (Feed feed : batch) {
+					failures.remove(feed.getId());
+				}
+			} catch (RuntimeException e) {
+				log.warn("could not write feed states, writing them one by one : "
+						+ e.getMessage());
+				count = 0;
+				for (Feed feed : batch) {
+					if (writeOne(feed)) {
+						count++;
+					} else {
+						failed.add(feed);
+					}
+				}
+			}
+			long duration = System.currentTimeMillis() - start;
+
+			flushes.incrementAndGet();
+			written.addAndGet(count);
+			totalFlushMillis.addAndGet(duration);
+			maxFlushMillis = Math.max(maxFlushMillis, duration);
+			lastBatchSize = batch.size();
+		}
+
+		for (Feed feed : failed) {
+			Integer attempts = failures.get(feed.getId());
+			attempts = attempts == null ? 1 : attempts + 1;
+			if (attempts >= MAX_ATTEMPTS) {
+				failures.remove(feed.getId());
+				dropped.incrementAndGet();
+				log.error("dropping the state of feed {} after {} failed writes",
+						feed.getUrl(), attempts);
+			} else {
+				failures.put(feed.getId(), attempts);
+				// unless a newer state is pending
+				pending.putIfAbsent(feed.getId(), feed);
+			}
+		}
+	}
+
+	private boolean writeOne(Feed feed) {
+		try {
+			feedDAO.updateRefreshState(Collections.singletonList(feed));
+			failures.remove(feed.getId());
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("could not write state of feed " + feed.getUrl() + " : "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	public WriterStatistics getStatistics() {
+		WriterStatistics stats = new WriterStatistics();
+		stats.pending = pending.size();
+		stats.flushes = flushes.get();
+		stats.written = written.get();
+		stats.dropped = dropped.get();
+		stats.lastBatchSize = lastBatchSize;
+		stats.maxFlushMillis = maxFlushMillis;
+		if (stats.flushes > 0) {
+			stats.averageBatchSize = stats.written / stats.flushes;
+			stats.averageFlushMillis = totalFlushMillis.get() / stats.flushes;
+		}
+		return stats;
+	}
+
+	public static class WriterStatistics {
+		private int pending;
+		private long flushes;
+		private long written;
+		private long dropped;
+		private int lastBatchSize;
+		private long averageBatchSize;
+		private long averageFlushMillis;
+		private long maxFlushMillis;
+
+		/**
+		 * feeds waiting to be written
+		 */
+		public int getPending() {
+			return pending;
+		}
+
+		public long getFlushes() {
+			return flushes;
+		}
+
+		/**
+		 * feeds written since startup
+		 */
+		public long getWritten() {
+			return written;
+		}
+
+		/**
+		 * feed states given up on after repeated failed writes
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		public int getLastBatchSize() {
+			return lastBatchSize;
+		}
+
+		public long getAverageBatchSize() {
+			return averageBatchSize;
+		}
+
+		public long getAverageFlushMillis() {
+			return averageFlushMillis;
+		}
+
+		public long getMaxFlushMillis() {
+			return maxFlushMillis;
+		}
+	}
+}
@@ -1,28 +1,24 @@
 package com.commafeed.backend.feeds;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.math.stat.descriptive.SummaryStatistics;
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document.OutputSettings;
-import org.jsoup.nodes.Entities.EscapeMode;
-import org.jsoup.safety.Whitelist;
-import org.mozilla.universalchardet.UniversalDetector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedEntry;
+import com.commafeed.backend.model.FeedEntryContent;
 import com.google.api.client.util.Lists;
 import com.google.gwt.i18n.client.HasDirection.Direction;
 import com.google.gwt.i18n.shared.BidiUtils;
@@ -38,70 +34,6 @@ public class FeedUtils {
 		return string;
 	}
 
-	public static String guessEncoding(byte[] bytes) {
-		String DEFAULT_ENCODING = "UTF-8";
-		UniversalDetector detector = new UniversalDetector(null);
-		detector.handleData(bytes, 0, bytes.length);
-		detector.dataEnd();
-		String encoding = detector.getDetectedCharset();
-		detector.reset();
-		if (encoding == null) {
-			encoding = DEFAULT_ENCODING;
-		} else if (encoding.equalsIgnoreCase("ISO-8859-1")
-				|| encoding.equalsIgnoreCase("ISO-8859-2")) {
-			encoding = "windows-1252";
-		}
-		return encoding;
-	}
-
-	public static String handleContent(String content, String baseUri) {
-		if (StringUtils.isNotBlank(content)) {
-			baseUri = StringUtils.trimToEmpty(baseUri);
-			Whitelist whitelist = new Whitelist();
-			whitelist.addTags("a", "b", "blockquote", "br", "caption", "cite",
-					"code", "col", "colgroup", "dd", "div", "dl", "dt", "em",
-					"h1", "h2", "h3", "h4", "h5", "h6", "i", "iframe", "img",
-					"li", "ol", "p", "pre", "q", "small", "strike", "strong",
-					"sub", "sup", "table", "tbody", "td", "tfoot", "th",
-					"thead", "tr", "u", "ul");
-
-			whitelist.addAttributes("div", "dir");
-			whitelist.addAttributes("pre", "dir");
-			whitelist.addAttributes("code", "dir");
-			whitelist.addAttributes("table", "dir");
-			whitelist.addAttributes("a", "href", "title");
-			whitelist.addAttributes("blockquote", "cite");
-			whitelist.addAttributes("col", "span", "width");
-			whitelist.addAttributes("colgroup", "span", "width");
-			whitelist.addAttributes("iframe", "src", "height", "width",
-					"allowfullscreen", "frameborder");
-			whitelist.addAttributes("img", "alt", "height", "src", "title",
-					"width");
-			whitelist.addAttributes("ol", "start", "type");
-			whitelist.addAttributes("q", "cite");
-			whitelist.addAttributes("table", "border", "bordercolor",
-					"summary", "width");
-			whitelist.addAttributes("td", "border", "bordercolor", "abbr",
-					"axis", "colspan", "rowspan", "width");
-			whitelist.addAttributes("th", "border", "bordercolor", "abbr",
-					"axis", "colspan", "rowspan", "scope", "width");
-			whitelist.addAttributes("ul", "type");
-
-			whitelist.addProtocols("a", "href", "ftp", "http", "https",
-					"mailto");
-			whitelist.addProtocols("blockquote", "cite", "http", "https");
-			whitelist.addProtocols("img", "src", "http", "https");
-			whitelist.addProtocols("q", "cite", "http", "https");
-
-			whitelist.addEnforcedAttribute("a", "target", "_blank");
-
-			content = Jsoup.clean(content, baseUri, whitelist,
-					new OutputSettings().escapeMode(EscapeMode.base)
-							.prettyPrint(false));
-		}
-		return content;
-	}
-
 	public static FeedEntry findEntry(Collection<FeedEntry> list,
 			FeedEntry entry) {
 		FeedEntry found = null;
@@ -126,11 +58,11 @@ public class FeedUtils {
 		return found;
 	}
 
-	public static boolean isRTL(FeedEntry entry) {
-		String text = entry.getContent().getContent();
+	public static boolean isRTL(FeedEntryContent content) {
+		String text = content.getContent();
 
 		if (StringUtils.isBlank(text)) {
-			text = entry.getContent().getTitle();
+			text = content.getTitle();
 		}
 
 		if (StringUtils.isBlank(text)) {
@@ -146,79 +78,14 @@ public class FeedUtils {
 		return direction == Direction.RTL;
 	}
 
-	public static String trimInvalidXmlCharacters(String xml) {
-		if (StringUtils.isBlank(xml)) {
-			return null;
-		}
-		StringBuilder sb = new StringBuilder();
-
-		boolean firstTagFound = false;
-		for (int i = 0; i < xml.length(); i++) {
-			char c = xml.charAt(i);
-
-			if (!firstTagFound) {
-				if (c == '<') {
-					firstTagFound = true;
-				} else {
-					continue;
-				}
-			}
-
-			if (c >= 32 || c == 9 || c == 10 || c == 13) {
-				if (!Character.isHighSurrogate(c)
-						&& !Character.isLowSurrogate(c)) {
-					sb.append(c);
-				}
-			}
-		}
-		return sb.toString();
-	}
-
 	/**
-	 * When there was an error fetching the feed
-	 * 
+	 * Returns a reader decoding the document and removing the characters not
+	 * allowed in XML
 	 */
-	public static Date buildDisabledUntil(int errorCount) {
-		Date now = Calendar.getInstance().getTime();
-		int retriesBeforeDisable = 3;
-
-		if (errorCount >= retriesBeforeDisable) {
-			int disabledHours = errorCount - retriesBeforeDisable + 1;
-			disabledHours = Math.min(24 * 7, disabledHours);
-			return DateUtils.addHours(now, disabledHours);
-		}
-		return null;
-	}
-
-	/**
-	 * When the feed was refreshed successfully
-	 */
-	public static Date buildDisabledUntil(Date publishedDate,
-			List<FeedEntry> entries) {
-		Date now = Calendar.getInstance().getTime();
-
-		if (publishedDate == null) {
-			// feed with no entries, recheck in 24 hours
-			return DateUtils.addHours(now, 24);
-		} else if (publishedDate.before(DateUtils.addMonths(now, -1))) {
-			// older than a month, recheck in 24 hours
-			return DateUtils.addHours(now, 24);
-		} else if (publishedDate.before(DateUtils.addDays(now, -14))) {
-			// older than two weeks, recheck in 12 hours
-			return DateUtils.addHours(now, 12);
-		} else if (publishedDate.before(DateUtils.addDays(now, -7))) {
-			// older than a week, recheck in 6 hours
-			return DateUtils.addHours(now, 6);
-		} else if (CollectionUtils.isNotEmpty(entries)) {
-			// use average time between entries to decide when to refresh next
-			long average = averageTimeBetweenEntries(entries);
-			int factor = 2;
-			return new Date(Math.min(DateUtils.addHours(now, 6).getTime(),
-					now.getTime() + average / factor));
-		} else {
-			// unknown case, recheck in 24 hours
-			return DateUtils.addHours(now, 24);
-		}
+	public static Reader newXmlReader(byte[] xml, String encoding)
+			throws UnsupportedEncodingException {
+		return new XmlCharacterFilterReader(new InputStreamReader(
+				new ByteArrayInputStream(xml), encoding));
 	}
 
 	public static long averageTimeBetweenEntries(List<FeedEntry> entries) {
@@ -0,0 +1,284 @@
+package com.commafeed.backend.feeds;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.commafeed.backend.model.Feed;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+/**
+ * Keeps track of the fetches per host. Each host has a token bucket limiting
+ * the request rate and a maximum number of concurrent fetches. Feeds of a
+ * host that is saturated are deferred until the host is available again.
+ */
+public class HostLimiter {
+
+	/**
+	 * maximum number of fetches in flight for a single host
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT = 4;
+
+	/**
+	 * requests a host can absorb at once after being idle
+	 */
+	public static final int DEFAULT_BURST = 5;
+
+	/**
+	 * sustained requests per minute for a single host
+	 */
+	public static final int DEFAULT_REQUESTS_PER_MINUTE = 60;
+
+	private Map<String, Host> hosts = Maps.newHashMap();
+	private int deferred;
+
+	private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	private double burst = DEFAULT_BURST;
+	private double tokensPerMilli = DEFAULT_REQUESTS_PER_MINUTE / 60000.0;
+
+	/**
+	 * Changes the limits applied to every host, values that are not positive
+	 * keep the defaults
+	 */
+	public synchronized void setLimits(int maxConcurrent, int burst,
+			int requestsPerMinute) {
+		this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent
+				: DEFAULT_MAX_CONCURRENT;
+		this.burst = burst > 0 ? burst : DEFAULT_BURST;
+		this.tokensPerMilli = (requestsPerMinute > 0 ? requestsPerMinute
+				: DEFAULT_REQUESTS_PER_MINUTE) / 60000.0;
+	}
+
+	/**
+	 * Returns true and reserves a slot if the host of this feed can be fetched
+	 * right now, defers the feed otherwise
+	 */
+	public synchronized boolean acquireOrDefer(Feed feed) {
+		return acquireOrDefer(feed, System.currentTimeMillis());
+	}
+
+	synchronized boolean acquireOrDefer(Feed feed, long now) {
+		Host host = getHost(feed, now);
+		if (host.tryAcquire(now)) {
+			return true;
+		}
+		host.throttled++;
+		host.queue.add(feed);
+		host.deferredAt.add(now);
+		deferred++;
+		return false;
+	}
+
+	/**
+	 * Returns a deferred feed whose host is available again, with a slot
+	 * reserved, or null if none
+	 */
+	public synchronized Feed pollDeferred() {
+		return pollDeferred(System.currentTimeMillis());
+	}
+
+	synchronized Feed pollDeferred(long now) {
+		if (deferred == 0) {
+			return null;
+		}
+		for (Host host : hosts.values()) {
+			if (!host.queue.isEmpty() && host.tryAcquire(now)) {
+				deferred--;
+				host.maxWait = Math.max(host.maxWait,
+						now - host.deferredAt.poll());
+				return host.queue.poll();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Frees the slot reserved for this feed, must be called once the fetch is
+	 * done
+	 */
+	public synchronized void release(Feed feed) {
+		Host host = hosts.get(getHostName(feed));
+		if (host != null && host.inFlight > 0) {
+			host.inFlight--;
+		}
+	}
+
+	public synchronized int getDeferredCount() {
+		return deferred;
+	}
+
+	/**
+	 * Removes hosts that are idle and have a full bucket, they would be
+	 * recreated in the same state
+	 */
+	public synchronized void evictIdle() {
+		evictIdle(System.currentTimeMillis());
+	}
+
+	synchronized void evictIdle(long now) {
+		Iterator<Host> it = hosts.values().iterator();
+		while (it.hasNext()) {
+			Host host = it.next();
+			if (host.inFlight == 0 && host.queue.isEmpty()) {
+				host.refill(now);
+				if (host.tokens >= burst) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of the busiest hosts
+	 */
+	public synchronized List<HostStatistics> getStatistics(int limit) {
+		long now = System.currentTimeMillis();
+		List<HostStatistics> list = Lists.newArrayList();
+		for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+			Host host = entry.getValue();
+			HostStatistics stats = new HostStatistics();
+			stats.host = entry.getKey();
+			stats.inFlight = host.inFlight;
+			stats.queued = host.queue.size();
+			stats.throttled = host.throttled;
+			Long oldest = host.deferredAt.peek();
+			stats.oldestWaitMillis = oldest == null ? 0 : now - oldest;
+			stats.maxWaitMillis = Math.max(host.maxWait,
+					stats.oldestWaitMillis);
+			list.add(stats);
+		}
+		Collections.sort(list, new Comparator<HostStatistics>() {
+			@Override
+			public int compare(HostStatistics o1, HostStatistics o2) {
+				int load1 = o1.inFlight + o1.queued;
+				int load2 = o2.inFlight + o2.queued;
+				if (load1 != load2) {
+					return load2 - load1;
+				}
+				return Long.valueOf(o2.throttled).compareTo(o1.throttled);
+			}
+		});
+		return list.size() > limit ? list.subList(0, limit) : list;
+	}
+
+	private Host getHost(Feed feed, long now) {
+		String name = getHostName(feed);
+		Host host = hosts.get(name);
+		if (host == null) {
+			host = new Host(now);
+			hosts.put(name, host);
+		}
+		return host;
+	}
+
+	static String getHostName(Feed feed) {
+		String url = feed.getUrl();
+		try {
+			String host = new URL(url).getHost();
+			if (StringUtils.isNotBlank(host)) {
+				return host.toLowerCase();
+			}
+		} catch (MalformedURLException e) {
+			// fall through, the fetch will fail anyway
+		}
+		return StringUtils.defaultString(url);
+	}
+
+	private class Host {
+		private double tokens = burst;
+		private long lastRefill;
+		private int inFlight;
+		private long throttled;
+		private long maxWait;
+		private Queue<Feed> queue = Queues.newArrayDeque();
+
+		/**
+		 * when each feed of the queue was deferred
+		 */
+		private Queue<Long> deferredAt = Queues.newArrayDeque();
+
+		public Host(long now) {
+			this.lastRefill = now;
+		}
+
+		private void refill(long now) {
+			if (now > lastRefill) {
+				tokens = Math.min(burst, tokens + (now - lastRefill)
+						* tokensPerMilli);
+				lastRefill = now;
+			}
+		}
+
+		private boolean tryAcquire(long now) {
+			if (inFlight >= maxConcurrent) {
+				return false;
+			}
+			refill(now);
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			inFlight++;
+			return true;
+		}
+	}
+
+	public static class HostStatistics {
+		private String host;
+		private int inFlight;
+		private int queued;
+		private long throttled;
+		private long oldestWaitMillis;
+		private long maxWaitMillis;
+
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * fetches currently running
+		 */
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		/**
+		 * feeds waiting for the host to be available
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * number of times a feed was deferred since the host was last idle
+		 */
+		public long getThrottled() {
+			return throttled;
+		}
+
+		/**
+		 * time the oldest queued feed has been waiting for the host, grows
+		 * without end if the host is starved
+		 */
+		public long getOldestWaitMillis() {
+			return oldestWaitMillis;
+		}
+
+		/**
+		 * longest time a feed waited for the host since the host was last
+		 * idle
+		 */
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+	}
+}
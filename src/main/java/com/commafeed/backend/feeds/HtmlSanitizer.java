@@ -0,0 +1,128 @@
+package com.commafeed.backend.feeds;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document.OutputSettings;
+import org.jsoup.nodes.Entities.EscapeMode;
+import org.jsoup.safety.Whitelist;
+
+/**
+ * Cleans the html of entries with a whitelist built once and shared by all
+ * threads. Plain text that jsoup would output unchanged is returned as is
+ * without being parsed.
+ */
+public class HtmlSanitizer {
+
+	private static final Whitelist WHITELIST = buildWhitelist();
+
+	private static AtomicLong cleaned = new AtomicLong();
+	private static AtomicLong skipped = new AtomicLong();
+
+	static Whitelist buildWhitelist() {
+		Whitelist whitelist = new Whitelist();
+		whitelist.addTags("a", "b", "blockquote", "br", "caption", "cite",
+				"code", "col", "colgroup", "dd", "div", "dl", "dt", "em", "h1",
+				"h2", "h3", "h4", "h5", "h6", "i", "iframe", "img", "li", "ol",
+				"p", "pre", "q", "small", "strike", "strong", "sub", "sup",
+				"table", "tbody", "td", "tfoot", "th", "thead", "tr", "u", "ul");
+
+		whitelist.addAttributes("div", "dir");
+		whitelist.addAttributes("pre", "dir");
+		whitelist.addAttributes("code", "dir");
+		whitelist.addAttributes("table", "dir");
+		whitelist.addAttributes("a", "href", "title");
+		whitelist.addAttributes("blockquote", "cite");
+		whitelist.addAttributes("col", "span", "width");
+		whitelist.addAttributes("colgroup", "span", "width");
+		whitelist.addAttributes("iframe", "src", "height", "width",
+				"allowfullscreen", "frameborder");
+		whitelist.addAttributes("img", "alt", "height", "src", "title",
+				"width");
+		whitelist.addAttributes("ol", "start", "type");
+		whitelist.addAttributes("q", "cite");
+		whitelist.addAttributes("table", "border", "bordercolor", "summary",
+				"width");
+		whitelist.addAttributes("td", "border", "bordercolor", "abbr", "axis",
+				"colspan", "rowspan", "width");
+		whitelist.addAttributes("th", "border", "bordercolor", "abbr", "axis",
+				"colspan", "rowspan", "scope", "width");
+		whitelist.addAttributes("ul", "type");
+
+		whitelist.addProtocols("a", "href", "ftp", "http", "https", "mailto");
+		whitelist.addProtocols("blockquote", "cite", "http", "https");
+		whitelist.addProtocols("img", "src", "http", "https");
+		whitelist.addProtocols("q", "cite", "http", "https");
+
+		whitelist.addEnforcedAttribute("a", "target", "_blank");
+		return whitelist;
+	}
+
+	public static String sanitize(String content, String baseUri) {
+		if (StringUtils.isBlank(content)) {
+			return content;
+		}
+		if (isUnchangedText(content)) {
+			skipped.incrementAndGet();
+			return content;
+		}
+		cleaned.incrementAndGet();
+		// the settings hold a charset encoder and can't be shared
+		OutputSettings settings = new OutputSettings().escapeMode(
+				EscapeMode.base).prettyPrint(false);
+		return Jsoup.clean(content, StringUtils.trimToEmpty(baseUri),
+				WHITELIST, settings);
+	}
+
+	/**
+	 * Returns true if jsoup would output the content unchanged: text without
+	 * markup, without characters it escapes and without whitespace it trims
+	 */
+	static boolean isUnchangedText(String content) {
+		int length = content.length();
+		if (content.charAt(0) <= ' ' || content.charAt(length - 1) <= ' ') {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = content.charAt(i);
+			if (c == '<' || c == '>' || c == '&' || c == '"'
+					|| (c >= 0xA0 && c <= 0xFF)) {
+				return false;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(content.charAt(i + 1))) {
+				i++;
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				// escaped by jsoup
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static SanitizerStatistics getStatistics() {
+		SanitizerStatistics stats = new SanitizerStatistics();
+		stats.cleaned = cleaned.get();
+		stats.skipped = skipped.get();
+		return stats;
+	}
+
+	public static class SanitizerStatistics {
+		private long cleaned;
+		private long skipped;
+
+		/**
+		 * contents parsed and cleaned by jsoup
+		 */
+		public long getCleaned() {
+			return cleaned;
+		}
+
+		/**
+		 * plain text contents returned as is
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.commafeed.backend.NodeRole;
+import com.commafeed.backend.dao.FeedEntryDAO;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bloom filter of the guid hashes of all stored entries. An entry whose hash is
+ * not in the filter is new and does not need to be looked up in the database.
+ *
+ * The filter is loaded in the background on crawler nodes and synchronized
+ * with the database every minute to see the entries inserted by other nodes.
+ * Until loaded, every entry is looked up.
+ */
+@Singleton
+public class KnownEntryFilter {
+
+	private static Logger log = LoggerFactory.getLogger(KnownEntryFilter.class);
+
+	private static final double FPP = 0.01;
+	private static final long MIN_CAPACITY = 1000000;
+	private static final int PAGE_SIZE = 10000;
+	private static final long SYNC_INTERVAL_SECONDS = 60;
+
+	/**
+	 * ids can be committed out of order by concurrent transactions, the last
+	 * ids are read again on the next synchronization
+	 */
+	private static final long ID_OVERLAP = 1000;
+
+	@Inject
+	FeedEntryDAO feedEntryDAO;
+
+	private ScheduledExecutorService executor;
+
+	private BloomFilter<CharSequence> filter;
+	private long capacity;
+	private long insertions;
+	private long lastId;
+	private volatile boolean ready;
+
+	private AtomicLong skipped = new AtomicLong();
+	private AtomicLong lookups = new AtomicLong();
+	private AtomicLong falsePositives = new AtomicLong();
+
+	private Runnable syncTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				sync();
+			} catch (Exception e) {
+				log.error("could not load entry hashes : " + e.getMessage(), e);
+			}
+		}
+	};
+
+	@PostConstruct
+	public void init() {
+		if (!NodeRole.get().isCrawler()) {
+			return;
+		}
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+				.setNameFormat("known-entry-filter").setDaemon(true).build());
+		executor.scheduleWithFixedDelay(syncTask, 0, SYNC_INTERVAL_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns false if the entry is definitely not stored yet
+	 */
+	public boolean mightContain(String guidHash) {
+		if (!ready) {
+			return true;
+		}
+		boolean result;
+		synchronized (this) {
+			result = filter.mightContain(guidHash);
+		}
+		if (!result) {
+			skipped.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Records the result of the database lookup of an entry the filter might
+	 * contain
+	 */
+	public void confirm(boolean found) {
+		if (!ready) {
+			return;
+		}
+		lookups.incrementAndGet();
+		if (!found) {
+			falsePositives.incrementAndGet();
+		}
+	}
+
+	public void put(String guidHash) {
+		synchronized (this) {
+			if (filter != null && filter.put(guidHash)) {
+				insertions++;
+			}
+		}
+	}
+
+	void sync() {
+		if (filter == null) {
+			reset(Math.max(MIN_CAPACITY, feedEntryDAO.getCount() * 2));
+		}
+
+		long start = System.currentTimeMillis();
+		int loaded = 0;
+		List<Object[]> page;
+		do {
+			page = feedEntryDAO.findGuidHashes(lastId, PAGE_SIZE);
+			synchronized (this) {
+				for (Object[] row : page) {
+					if (filter.put((String) row[1])) {
+						insertions++;
+					}
+					lastId = Math.max(lastId, (Long) row[0]);
+				}
+			}
+			loaded += page.size();
+		} while (page.size() == PAGE_SIZE);
+
+		synchronized (this) {
+			lastId = Math.max(0, lastId - ID_OVERLAP);
+			if (!ready) {
+				log.info("loaded {} entry hashes in {} ms", loaded,
+						System.currentTimeMillis() - start);
+				ready = true;
+			}
+			if (insertions > capacity) {
+				log.info("entry filter is full, reloading");
+				reset(capacity * 2);
+			}
+		}
+	}
+
+	/**
+	 * Starts over with an empty filter, entries are looked up until it is
+	 * loaded again
+	 */
+	private synchronized void reset(long capacity) {
+		this.ready = false;
+		this.capacity = capacity;
+		this.filter = BloomFilter.create(Funnels.stringFunnel(),
+				(int) Math.min(capacity, Integer.MAX_VALUE), FPP);
+		this.insertions = 0;
+		this.lastId = 0;
+	}
+
+	public synchronized FilterStatistics getStatistics() {
+		FilterStatistics stats = new FilterStatistics();
+		stats.ready = ready;
+		stats.capacity = capacity;
+		stats.insertions = insertions;
+		if (filter != null) {
+			stats.expectedFpp = filter.expectedFpp();
+			// optimal number of bits for the capacity and fpp
+			stats.memoryBytes = (long) (-capacity * Math.log(FPP) / (Math
+					.log(2) * Math.log(2))) / 8;
+		}
+		stats.skipped = skipped.get();
+		stats.lookups = lookups.get();
+		stats.falsePositives = falsePositives.get();
+		if (stats.skipped + stats.falsePositives > 0) {
+			stats.measuredFpp = (double) stats.falsePositives
+					/ (stats.skipped + stats.falsePositives);
+		}
+		return stats;
+	}
+
+	public static class FilterStatistics {
+		private boolean ready;
+		private long capacity;
+		private long insertions;
+		private double expectedFpp;
+		private double measuredFpp;
+		private long memoryBytes;
+		private long skipped;
+		private long lookups;
+		private long falsePositives;
+
+		/**
+		 * false while the filter is loading
+		 */
+		public boolean isReady() {
+			return ready;
+		}
+
+		public long getCapacity() {
+			return capacity;
+		}
+
+		/**
+		 * distinct hashes added to the filter
+		 */
+		public long getInsertions() {
+			return insertions;
+		}
+
+		/**
+		 * false positive probability for the current number of insertions
+		 */
+		public double getExpectedFpp() {
+			return expectedFpp;
+		}
+
+		/**
+		 * new entries the filter wrongly reported as known
+		 */
+		public double getMeasuredFpp() {
+			return measuredFpp;
+		}
+
+		public long getMemoryBytes() {
+			return memoryBytes;
+		}
+
+		/**
+		 * lookups avoided
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public long getLookups() {
+			return lookups;
+		}
+
+		/**
+		 * lookups that found nothing
+		 */
+		public long getFalsePositives() {
+			return falsePositives;
+		}
+	}
+}
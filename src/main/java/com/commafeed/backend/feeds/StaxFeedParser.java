@@ -0,0 +1,507 @@
+package com.commafeed.backend.feeds;
+
+import java.io.Reader;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.commafeed.backend.model.FeedEntry;
+import com.google.common.collect.Lists;
+import com.sun.syndication.io.impl.Atom10Parser;
+import com.sun.syndication.io.impl.DateParser;
+
+/**
+ * Streaming parser for RSS 2.0, RSS 1.0 and Atom 1.0 feeds. Entries are built
+ * from the StAX events without building a document tree, with the same values
+ * ROME would give. Documents this parser can't handle exactly like ROME (other
+ * formats, DTDs, xhtml content, relative atom links, ...) are left to ROME.
+ */
+public class StaxFeedParser {
+
+	private static final String ATOM_10_URI = "http://www.w3.org/2005/Atom";
+	private static final String RDF_URI = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String RSS_10_URI = "http://purl.org/rss/1.0/";
+	private static final String RSS_090_URI = "http://my.netscape.com/rdf/simple/0.9/";
+	private static final String CONTENT_URI = "http://purl.org/rss/1.0/modules/content/";
+	private static final String DC_URI = "http://purl.org/dc/elements/1.1/";
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+				true);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		return factory;
+	}
+
+	/**
+	 * Thrown when the document needs ROME
+	 */
+	private static class UnsupportedFeedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final UnsupportedFeedException UNSUPPORTED = new UnsupportedFeedException();
+
+	/**
+	 * Values of an entry as ROME's SyndEntry would give them
+	 */
+	private static class Item {
+		private String title;
+		private String link;
+		private String uri;
+		private Date updated;
+		private Date published;
+		private String author;
+		private String description;
+		private String content;
+		private String enclosureUrl;
+		private String enclosureType;
+
+		private String guid;
+		private boolean hasGuid;
+		private boolean hasPubDate;
+		private Date pubDate;
+		private List<String> creators = Lists.newArrayList();
+		private boolean hasDcDate;
+		private Date dcDate;
+		private boolean hasEnclosure;
+		private boolean hasAtomAuthor;
+	}
+
+	/**
+	 * Parses the feed, returns null if the document has to be parsed by ROME
+	 */
+	public FetchedFeed parse(Reader xml) throws XMLStreamException {
+		XMLStreamReader reader = FACTORY.createXMLStreamReader(xml);
+		try {
+			FetchedFeed fetchedFeed = new FetchedFeed();
+			List<Item> items = Lists.newArrayList();
+			if (!moveToRoot(reader)) {
+				return null;
+			}
+
+			String ns = StringUtils.defaultString(reader.getNamespaceURI());
+			String name = reader.getLocalName();
+			if ("rss".equals(name) && ns.isEmpty()
+					&& "2.0".equals(reader.getAttributeValue(null, "version"))) {
+				parseRss(reader, fetchedFeed, items);
+			} else if ("RDF".equals(name) && RDF_URI.equals(ns)
+					&& isRss10(reader)) {
+				parseRdf(reader, fetchedFeed, items);
+			} else if ("feed".equals(name) && ATOM_10_URI.equals(ns)) {
+				parseAtom(reader, fetchedFeed, items);
+			} else {
+				return null;
+			}
+
+			String feedLink = fetchedFeed.getFeed().getLink();
+			for (Item item : items) {
+				FeedEntry entry = FeedParser.buildEntry(item.uri, item.link,
+						feedLink, item.updated, item.published, item.author,
+						item.content != null ? item.content : item.description,
+						item.title, item.enclosureUrl, item.enclosureType);
+				if (entry != null) {
+					fetchedFeed.getEntries().add(entry);
+				}
+			}
+			return fetchedFeed;
+		} catch (UnsupportedFeedException e) {
+			return null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private boolean moveToRoot(XMLStreamReader reader)
+			throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			} else if (event == XMLStreamConstants.DTD) {
+				// entities may be declared there
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean isRss10(XMLStreamReader reader) {
+		boolean rss10 = false;
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String uri = reader.getNamespaceURI(i);
+			if (RSS_090_URI.equals(uri)) {
+				return false;
+			}
+			rss10 |= RSS_10_URI.equals(uri);
+		}
+		return rss10;
+	}
+
+	private void parseRss(XMLStreamReader reader, FetchedFeed fetchedFeed,
+			List<Item> items) throws XMLStreamException {
+		boolean channelFound = false;
+		while (nextChild(reader)) {
+			if (!channelFound && isElement(reader, "", "channel")) {
+				channelFound = true;
+				parseChannel(reader, fetchedFeed, items, "");
+			} else {
+				skipElement(reader);
+			}
+		}
+		if (!channelFound) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	private void parseRdf(XMLStreamReader reader, FetchedFeed fetchedFeed,
+			List<Item> items) throws XMLStreamException {
+		boolean channelFound = false;
+		while (nextChild(reader)) {
+			if (!channelFound && isElement(reader, RSS_10_URI, "channel")) {
+				channelFound = true;
+				parseChannel(reader, fetchedFeed, null, RSS_10_URI);
+			} else if (isElement(reader, RSS_10_URI, "item")) {
+				Item item = new Item();
+				item.uri = reader.getAttributeValue(RDF_URI, "about");
+				parseRssItem(reader, item, RSS_10_URI);
+				if (item.uri == null) {
+					item.uri = item.link;
+				}
+				items.add(item);
+			} else {
+				skipElement(reader);
+			}
+		}
+		if (!channelFound) {
+			throw UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * Reads the channel, items are read from the channel for RSS 2.0 only
+	 */
+	private void parseChannel(XMLStreamReader reader, FetchedFeed fetchedFeed,
+			List<Item> items, String ns) throws XMLStreamException {
+		String title = null;
+		String link = null;
+		while (nextChild(reader)) {
+			if (title == null && isElement(reader, ns, "title")) {
+				title = readText(reader);
+			} else if (link == null && isElement(reader, ns, "link")) {
+				link = readText(reader);
+			} else if (isElement(reader, ATOM_10_URI, "link")) {
+				readLink(reader, fetchedFeed);
+				skipElement(reader);
+			} else if (items != null && isElement(reader, ns, "item")) {
+				Item item = new Item();
+				parseRssItem(reader, item, ns);
+				item.uri = item.hasGuid ? item.guid : item.link;
+				items.add(item);
+			} else {
+				skipElement(reader);
+			}
+		}
+		fetchedFeed.setTitle(title);
+		fetchedFeed.getFeed().setLink(link);
+	}
+
+	private void parseRssItem(XMLStreamReader reader, Item item, String ns)
+			throws XMLStreamException {
+		boolean hasTitle = false;
+		boolean hasLink = false;
+		boolean hasDescription = false;
+		boolean hasContent = false;
+		String author = null;
+		while (nextChild(reader)) {
+			if (!hasTitle && isElement(reader, ns, "title")) {
+				hasTitle = true;
+				item.title = readText(reader);
+			} else if (!hasLink && isElement(reader, ns, "link")) {
+				hasLink = true;
+				item.link = readText(reader);
+			} else if (!hasDescription && isElement(reader, ns, "description")) {
+				hasDescription = true;
+				item.description = readText(reader);
+			} else if (!hasContent && isElement(reader, CONTENT_URI, "encoded")) {
+				hasContent = true;
+				item.content = readText(reader);
+			} else if (ns.isEmpty() && !item.hasGuid
+					&& isElement(reader, ns, "guid")) {
+				item.hasGuid = true;
+				item.guid = readText(reader);
+			} else if (ns.isEmpty() && !item.hasPubDate
+					&& isElement(reader, ns, "pubDate")) {
+				item.hasPubDate = true;
+				item.pubDate = DateParser.parseDate(readText(reader));
+			} else if (ns.isEmpty() && author == null
+					&& isElement(reader, ns, "author")) {
+				author = readText(reader);
+			} else if (ns.isEmpty() && !item.hasEnclosure
+					&& isElement(reader, ns, "enclosure")) {
+				item.hasEnclosure = true;
+				item.enclosureUrl = reader.getAttributeValue(null, "url");
+				item.enclosureType = reader.getAttributeValue(null, "type");
+				skipElement(reader);
+			} else if (!parseDublinCore(reader, item)) {
+				skipElement(reader);
+			}
+		}
+
+		item.published = item.pubDate != null ? item.pubDate : item.dcDate;
+		if (author == null || item.creators.contains(author)) {
+			item.author = item.creators.isEmpty() ? "" : item.creators.get(0);
+		} else if (item.creators.isEmpty()) {
+			item.author = author;
+		} else {
+			// ROME merges both in a set, the first one is unpredictable
+			throw UNSUPPORTED;
+		}
+	}
+
+	private void parseAtom(XMLStreamReader reader, FetchedFeed fetchedFeed,
+			List<Item> items) throws XMLStreamException {
+		String title = null;
+		while (nextChild(reader)) {
+			if (title == null && isElement(reader, ATOM_10_URI, "title")) {
+				title = readTextConstruct(reader);
+			} else if (isElement(reader, ATOM_10_URI, "link")) {
+				String href = readLink(reader, fetchedFeed);
+				if (fetchedFeed.getFeed().getLink() == null
+						&& isAlternate(reader)) {
+					fetchedFeed.getFeed().setLink(href);
+				}
+				skipElement(reader);
+			} else if (isElement(reader, ATOM_10_URI, "entry")) {
+				items.add(parseAtomEntry(reader));
+			} else {
+				skipElement(reader);
+			}
+		}
+		fetchedFeed.setTitle(title);
+	}
+
+	private Item parseAtomEntry(XMLStreamReader reader)
+			throws XMLStreamException {
+		Item item = new Item();
+		boolean hasTitle = false;
+		boolean hasId = false;
+		boolean hasUpdated = false;
+		boolean hasPublished = false;
+		boolean hasSummary = false;
+		boolean hasContent = false;
+		Date published = null;
+		while (nextChild(reader)) {
+			if (!hasTitle && isElement(reader, ATOM_10_URI, "title")) {
+				hasTitle = true;
+				item.title = readTextConstruct(reader);
+			} else if (isElement(reader, ATOM_10_URI, "link")) {
+				String href = getHref(reader);
+				String rel = reader.getAttributeValue(null, "rel");
+				if (item.link == null && isAlternate(reader)) {
+					item.link = href;
+				} else if (!item.hasEnclosure && "enclosure".equals(rel)) {
+					item.hasEnclosure = true;
+					item.enclosureUrl = href;
+					item.enclosureType = reader.getAttributeValue(null,
+							"type");
+				}
+				skipElement(reader);
+			} else if (!hasId && isElement(reader, ATOM_10_URI, "id")) {
+				hasId = true;
+				item.uri = readText(reader);
+			} else if (!hasUpdated && isElement(reader, ATOM_10_URI, "updated")) {
+				hasUpdated = true;
+				item.updated = DateParser.parseDate(readText(reader));
+			} else if (!hasPublished
+					&& isElement(reader, ATOM_10_URI, "published")) {
+				hasPublished = true;
+				published = DateParser.parseDate(readText(reader));
+			} else if (!item.hasAtomAuthor
+					&& isElement(reader, ATOM_10_URI, "author")) {
+				item.hasAtomAuthor = true;
+				item.author = readPersonName(reader);
+			} else if (!hasSummary && isElement(reader, ATOM_10_URI, "summary")) {
+				hasSummary = true;
+				item.description = readTextConstruct(reader);
+			} else if (!hasContent && isElement(reader, ATOM_10_URI, "content")) {
+				hasContent = true;
+				item.content = readTextConstruct(reader);
+			} else if (!parseDublinCore(reader, item)) {
+				skipElement(reader);
+			}
+		}
+
+		if (item.uri == null) {
+			item.uri = item.link;
+		}
+		item.published = published != null ? published : item.dcDate;
+		if (!item.hasAtomAuthor) {
+			item.author = item.creators.isEmpty() ? "" : item.creators.get(0);
+		}
+		return item;
+	}
+
+	private boolean parseDublinCore(XMLStreamReader reader, Item item)
+			throws XMLStreamException {
+		if (isElement(reader, DC_URI, "creator")) {
+			item.creators.add(readText(reader));
+			return true;
+		} else if (isElement(reader, DC_URI, "date")) {
+			String date = readText(reader);
+			if (!item.hasDcDate) {
+				item.hasDcDate = true;
+				item.dcDate = DateParser.parseDate(date);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads an atom link, keeping the first hub and self links of the feed
+	 */
+	private String readLink(XMLStreamReader reader, FetchedFeed fetchedFeed) {
+		String href = getHref(reader);
+		String rel = reader.getAttributeValue(null, "rel");
+		if (fetchedFeed.getHub() == null && "hub".equalsIgnoreCase(rel)) {
+			fetchedFeed.setHub(href);
+		} else if (fetchedFeed.getTopic() == null
+				&& "self".equalsIgnoreCase(rel)) {
+			fetchedFeed.setTopic(href);
+		}
+		return href;
+	}
+
+	private String getHref(XMLStreamReader reader) {
+		String href = reader.getAttributeValue(null, "href");
+		if (href != null && Atom10Parser.isRelativeURI(href)) {
+			// ROME may resolve it against xml:base
+			throw UNSUPPORTED;
+		}
+		return href;
+	}
+
+	private boolean isAlternate(XMLStreamReader reader) {
+		String rel = reader.getAttributeValue(null, "rel");
+		return rel == null || rel.trim().isEmpty() || "alternate".equals(rel);
+	}
+
+	private String readPersonName(XMLStreamReader reader)
+			throws XMLStreamException {
+		String name = null;
+		while (nextChild(reader)) {
+			if (name == null && isElement(reader, ATOM_10_URI, "name")) {
+				name = readText(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+		if (name == null) {
+			throw UNSUPPORTED;
+		}
+		return name;
+	}
+
+	/**
+	 * Reads an atom text construct, xhtml and xml content is serialized by
+	 * ROME and is not supported here
+	 */
+	private String readTextConstruct(XMLStreamReader reader)
+			throws XMLStreamException {
+		String type = reader.getAttributeValue(null, "type");
+		if (type != null
+				&& (type.equals("xhtml") || type.contains("/xml") || type
+						.contains("+xml"))) {
+			throw UNSUPPORTED;
+		}
+		return readText(reader);
+	}
+
+	private boolean isElement(XMLStreamReader reader, String ns, String name) {
+		return name.equals(reader.getLocalName())
+				&& ns.equals(StringUtils.defaultString(reader.getNamespaceURI()));
+	}
+
+	/**
+	 * Moves to the next child element of the current element, returns false
+	 * when the end tag of the current element is reached
+	 */
+	private boolean nextChild(XMLStreamReader reader)
+			throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the text directly under the current element, like JDOM's
+	 * getText(), and moves to its end tag
+	 */
+	private String readText(XMLStreamReader reader) throws XMLStreamException {
+		String text = "";
+		StringBuilder sb = null;
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == 0) {
+					break;
+				}
+				depth--;
+			} else if (depth == 0
+					&& (event == XMLStreamConstants.CHARACTERS
+							|| event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+				// usually a single event when coalescing
+				if (sb != null) {
+					sb.append(reader.getText());
+				} else if (text.isEmpty()) {
+					text = reader.getText();
+				} else {
+					sb = new StringBuilder(text).append(reader.getText());
+				}
+			}
+		}
+		return sb != null ? sb.toString() : text;
+	}
+
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.commafeed.backend.feeds;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Removes the characters that are not allowed in XML documents while the
+ * document is read, as well as anything before the first tag. Surrogate pairs
+ * are kept, lone surrogates are removed.
+ */
+public class XmlCharacterFilterReader extends FilterReader {
+
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+
+	private boolean firstTagFound;
+
+	/**
+	 * the high surrogate of a pair was returned, the low one must follow
+	 */
+	private boolean lowSurrogatePending;
+
+	public XmlCharacterFilterReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < len) {
+			if (position == limit && (count > 0 || !fill())) {
+				break;
+			}
+			char c = buffer[position];
+
+			if (lowSurrogatePending) {
+				lowSurrogatePending = false;
+				cbuf[off + count++] = c;
+				position++;
+			} else if (!firstTagFound && c != '<') {
+				position++;
+			} else if (Character.isHighSurrogate(c)) {
+				if (position + 1 == limit) {
+					if (count > 0) {
+						break;
+					}
+					if (!fill()) {
+						// lone high surrogate at the end of the document
+						position++;
+						continue;
+					}
+				}
+				if (Character.isLowSurrogate(buffer[position + 1])) {
+					cbuf[off + count++] = c;
+					lowSurrogatePending = true;
+				}
+				position++;
+			} else {
+				firstTagFound = true;
+				if (isValid(c)) {
+					cbuf[off + count++] = c;
+				}
+				position++;
+			}
+		}
+		return count == 0 ? -1 : count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		char[] c = new char[1];
+		return read(c, 0, 1) == -1 ? -1 : c[0];
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		char[] skipped = new char[(int) Math.min(n, buffer.length)];
+		long remaining = n;
+		while (remaining > 0) {
+			int read = read(skipped, 0,
+					(int) Math.min(remaining, skipped.length));
+			if (read == -1) {
+				break;
+			}
+			remaining -= read;
+		}
+		return n - remaining;
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return position < limit || in.ready();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readAheadLimit) throws IOException {
+		throw new IOException("mark() not supported");
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("reset() not supported");
+	}
+
+	/**
+	 * Reads more characters, keeping the ones not consumed yet. Returns false
+	 * at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		int remaining = limit - position;
+		System.arraycopy(buffer, position, buffer, 0, remaining);
+		position = 0;
+		limit = remaining;
+		int read = 0;
+		while (read == 0) {
+			read = in.read(buffer, limit, buffer.length - limit);
+		}
+		if (read == -1) {
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * Characters allowed in XML 1.0, surrogates excluded
+	 */
+	private static boolean isValid(char c) {
+		return c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF)
+				|| (c >= 0xE000 && c <= 0xFFFD);
+	}
+}
@@ -21,6 +21,11 @@ public class ApplicationSettings extends AbstractModel {
 	private String googleClientSecret;
 	private int backgroundThreads = 3;
 	private int databaseUpdateThreads = 1;
+	private int maxFeedSize = 5120;
+	private int permanentRedirectThreshold = 3;
+	private int hostMaxConcurrent = 4;
+	private int hostBurst = 5;
+	private int hostRequestsPerMinute = 60;
 	private String smtpHost;
 	private int smtpPort;
 	private boolean smtpTls;
@@ -28,6 +33,7 @@ public class ApplicationSettings extends AbstractModel {
 	private String smtpPassword;
 	private boolean heavyLoad;
 	private boolean pubsubhubbub;
+	private boolean readWatermarks;
 	private boolean feedbackButton = true;
 
 	@Column(length = 255)
@@ -146,6 +152,19 @@ public class ApplicationSettings extends AbstractModel {
 		this.pubsubhubbub = pubsubhubbub;
 	}
 
+	/**
+	 * keep a read watermark per subscription instead of a status per entry
+	 * and subscription. Subscriptions are migrated on startup, there is no
+	 * way back once they are
+	 */
+	public boolean isReadWatermarks() {
+		return readWatermarks;
+	}
+
+	public void setReadWatermarks(boolean readWatermarks) {
+		this.readWatermarks = readWatermarks;
+	}
+
 	public boolean isHeavyLoad() {
 		return heavyLoad;
 	}
@@ -162,4 +181,60 @@ public class ApplicationSettings extends AbstractModel {
 		this.databaseUpdateThreads = databaseUpdateThreads;
 	}
 
+	/**
+	 * in kilobytes
+	 */
+	public int getMaxFeedSize() {
+		return maxFeedSize;
+	}
+
+	public void setMaxFeedSize(int maxFeedSize) {
+		this.maxFeedSize = maxFeedSize;
+	}
+
+	/**
+	 * consecutive permanent redirects to the same url before the url of a
+	 * feed is changed
+	 */
+	public int getPermanentRedirectThreshold() {
+		return permanentRedirectThreshold;
+	}
+
+	public void setPermanentRedirectThreshold(int permanentRedirectThreshold) {
+		this.permanentRedirectThreshold = permanentRedirectThreshold;
+	}
+
+	/**
+	 * maximum number of fetches in flight for a single host
+	 */
+	public int getHostMaxConcurrent() {
+		return hostMaxConcurrent;
+	}
+
+	public void setHostMaxConcurrent(int hostMaxConcurrent) {
+		this.hostMaxConcurrent = hostMaxConcurrent;
+	}
+
+	/**
+	 * requests a host can absorb at once after being idle
+	 */
+	public int getHostBurst() {
+		return hostBurst;
+	}
+
+	public void setHostBurst(int hostBurst) {
+		this.hostBurst = hostBurst;
+	}
+
+	/**
+	 * sustained requests per minute for a single host
+	 */
+	public int getHostRequestsPerMinute() {
+		return hostRequestsPerMinute;
+	}
+
+	public void setHostRequestsPerMinute(int hostRequestsPerMinute) {
+		this.hostRequestsPerMinute = hostRequestsPerMinute;
+	}
+
 }
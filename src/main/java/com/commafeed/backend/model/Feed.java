@@ -60,12 +60,69 @@ public class Feed extends AbstractModel {
 	@Index(name = "disableduntil_index")
 	private Date disabledUntil;
 
+	/**
+	 * Estimated number of new entries per hour, exponentially weighted
+	 */
+	private Double postingRate;
+
+	/**
+	 * Weighted ratio of refreshes that found new entries
+	 */
+	private Double hitRatio;
+
+	/**
+	 * Last time new entries were found
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date lastContentChange;
+
 	@Column(length = 64)
 	private String lastModifiedHeader;
 
 	@Column(length = 255)
 	private String etagHeader;
 
+	/**
+	 * SHA1 of the last content that was fully processed, used to skip feeds
+	 * that didn't change when the server ignores conditional requests
+	 */
+	@Column(length = 40)
+	private String lastContentHash;
+
+	/**
+	 * Url we were permanently redirected to on the last refreshes
+	 */
+	@Column(length = 2048)
+	private String redirectUrl;
+
+	/**
+	 * Number of consecutive refreshes redirected to redirectUrl
+	 */
+	private int redirectCount;
+
+	/**
+	 * Number of subscriptions, updated when the feed is refreshed
+	 */
+	private int subscriberCount;
+
+	/**
+	 * Most recent login of a subscriber, updated when the feed is refreshed
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date lastSubscriberLogin;
+
+	/**
+	 * Node currently allowed to refresh the feed
+	 */
+	@Column(length = 128)
+	private String leaseOwner;
+
+	/**
+	 * Time after which another node may claim the feed
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date leaseExpiry;
+
 	@ManyToMany(mappedBy = "feeds")
 	private Set<FeedEntry> entries = Sets.newHashSet();
 
@@ -178,6 +235,14 @@ public class Feed extends AbstractModel {
 		this.etagHeader = etagHeader;
 	}
 
+	public String getLastContentHash() {
+		return lastContentHash;
+	}
+
+	public void setLastContentHash(String lastContentHash) {
+		this.lastContentHash = lastContentHash;
+	}
+
 	public Date getLastUpdateSuccess() {
 		return lastUpdateSuccess;
 	}
@@ -202,6 +267,78 @@ public class Feed extends AbstractModel {
 		this.pushTopic = pushTopic;
 	}
 
+	public Double getPostingRate() {
+		return postingRate;
+	}
+
+	public void setPostingRate(Double postingRate) {
+		this.postingRate = postingRate;
+	}
+
+	public Double getHitRatio() {
+		return hitRatio;
+	}
+
+	public void setHitRatio(Double hitRatio) {
+		this.hitRatio = hitRatio;
+	}
+
+	public Date getLastContentChange() {
+		return lastContentChange;
+	}
+
+	public void setLastContentChange(Date lastContentChange) {
+		this.lastContentChange = lastContentChange;
+	}
+
+	public String getRedirectUrl() {
+		return redirectUrl;
+	}
+
+	public void setRedirectUrl(String redirectUrl) {
+		this.redirectUrl = redirectUrl;
+	}
+
+	public int getRedirectCount() {
+		return redirectCount;
+	}
+
+	public void setRedirectCount(int redirectCount) {
+		this.redirectCount = redirectCount;
+	}
+
+	public int getSubscriberCount() {
+		return subscriberCount;
+	}
+
+	public void setSubscriberCount(int subscriberCount) {
+		this.subscriberCount = subscriberCount;
+	}
+
+	public Date getLastSubscriberLogin() {
+		return lastSubscriberLogin;
+	}
+
+	public void setLastSubscriberLogin(Date lastSubscriberLogin) {
+		this.lastSubscriberLogin = lastSubscriberLogin;
+	}
+
+	public String getLeaseOwner() {
+		return leaseOwner;
+	}
+
+	public void setLeaseOwner(String leaseOwner) {
+		this.leaseOwner = leaseOwner;
+	}
+
+	public Date getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	public void setLeaseExpiry(Date leaseExpiry) {
+		this.leaseExpiry = leaseExpiry;
+	}
+
 	public Date getPushLastPing() {
 		return pushLastPing;
 	}
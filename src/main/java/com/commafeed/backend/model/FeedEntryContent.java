@@ -23,6 +23,12 @@ public class FeedEntryContent extends AbstractModel {
 	@Column(length = 255)
 	private String enclosureType;
 
+	/**
+	 * right-to-left text, null until computed for entries stored before it was
+	 * computed on insert
+	 */
+	private Boolean rtl;
+
 	public String getContent() {
 		return content;
 	}
@@ -55,4 +61,12 @@ public class FeedEntryContent extends AbstractModel {
 		this.title = title;
 	}
 
+	public Boolean getRtl() {
+		return rtl;
+	}
+
+	public void setRtl(Boolean rtl) {
+		this.rtl = rtl;
+	}
+
 }
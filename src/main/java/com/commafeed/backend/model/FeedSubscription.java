@@ -1,5 +1,6 @@
 package com.commafeed.backend.model;
 
+import java.util.Date;
 import java.util.Set;
 
 import javax.persistence.CascadeType;
@@ -10,6 +11,8 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
 @Entity
 @Table(name = "FEEDSUBSCRIPTIONS")
@@ -35,6 +38,13 @@ public class FeedSubscription extends AbstractModel {
 
 	private Integer position;
 
+	/**
+	 * Entries inserted before this date are read unless their status says
+	 * otherwise. Null if the read entries are only known from their statuses
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date readUpTo;
+
 	public Feed getFeed() {
 		return feed;
 	}
@@ -83,4 +93,12 @@ public class FeedSubscription extends AbstractModel {
 		this.position = position;
 	}
 
+	public Date getReadUpTo() {
+		return readUpTo;
+	}
+
+	public void setReadUpTo(Date readUpTo) {
+		this.readUpTo = readUpTo;
+	}
+
 }
@@ -35,6 +35,9 @@ public class SubscriptionHandler {
 	@Inject
 	FeedDAO feedDAO;
 
+	@Inject
+	HttpGetter getter;
+
 	public void subscribe(Feed feed) {
 
 		try {
@@ -68,7 +71,7 @@ public class SubscriptionHandler {
 		post.setHeader(HttpHeaders.CONTENT_TYPE,
 				MediaType.APPLICATION_FORM_URLENCODED);
 
-		HttpClient client = HttpGetter.newClient();
+		HttpClient client = getter.getClient();
 		try {
 			post.setEntity(new UrlEncodedFormEntity(nvp));
 			HttpResponse response = client.execute(post);
@@ -89,13 +92,15 @@ public class SubscriptionHandler {
 							+ " " + response.getStatusLine().getReasonPhrase()
 							+ " - " + message);
 				}
+			} else {
+				EntityUtils.consumeQuietly(response.getEntity());
 			}
 			log.debug("subscribed to {} for {}", hub, topic);
 		} catch (Exception e) {
 			log.error("Could not subscribe to {} for {} : " + e.getMessage(),
 					hub, topic);
 		} finally {
-			client.getConnectionManager().shutdown();
+			post.releaseConnection();
 		}
 	}
 }
@@ -13,7 +13,7 @@ public class FeedEntryService {
 	@Inject
 	FeedEntryStatusDAO feedEntryStatusDAO;
 
-	public void markEntry(User user, Long entryId, boolean read) {
+	public void markEntry(User user, String entryId, boolean read) {
 		FeedEntryStatus status = feedEntryStatusDAO.findById(user, entryId);
 		if (status != null) {
 			status.setRead(read);
@@ -21,7 +21,7 @@ public class FeedEntryService {
 		}
 	}
 
-	public void starEntry(User user, Long entryId, boolean starred) {
+	public void starEntry(User user, String entryId, boolean starred) {
 		FeedEntryStatus status = feedEntryStatusDAO.findById(user, entryId);
 		if (status != null) {
 			status.setStarred(starred);
@@ -1,5 +1,8 @@
 package com.commafeed.backend.services;
 
+import java.util.Calendar;
+import java.util.Date;
+
 import javax.ejb.Lock;
 import javax.ejb.LockType;
 import javax.ejb.Singleton;
@@ -8,7 +11,9 @@ import javax.inject.Inject;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import com.commafeed.backend.dao.FeedDAO;
+import com.commafeed.backend.dao.FeedSubscriptionDAO;
 import com.commafeed.backend.model.Feed;
+import com.commafeed.backend.model.FeedSubscription;
 
 @Singleton
 public class FeedService {
@@ -16,6 +21,9 @@ public class FeedService {
 	@Inject
 	FeedDAO feedDAO;
 
+	@Inject
+	FeedSubscriptionDAO feedSubscriptionDAO;
+
 	@Lock(LockType.WRITE)
 	public Feed findOrCreate(String url) {
 		Feed feed = feedDAO.findByUrl(url);
@@ -28,4 +36,43 @@ public class FeedService {
 		return feed;
 	}
 
+	/**
+	 * Changes the url of the feed after it was permanently redirected. If a
+	 * feed already exists for the new url, the subscriptions are moved to that
+	 * feed, which is returned. The watermarks of the moved subscriptions are
+	 * set after the entries the target feed already has.
+	 */
+	@Lock(LockType.WRITE)
+	public Feed moveFeed(Feed feed, String url) {
+		Feed target = feedDAO.findByUrl(url);
+		if (target == null) {
+			feedDAO.updateUrl(feed, url);
+			feed.setUrl(url);
+			feed.setUrlHash(DigestUtils.sha1Hex(url));
+			return feed;
+		} else if (target.getId().equals(feed.getId())) {
+			return feed;
+		}
+
+		Date now = Calendar.getInstance().getTime();
+		for (FeedSubscription sub : feedSubscriptionDAO.findByFeed(feed)) {
+			FeedSubscription existing = feedSubscriptionDAO.findByFeed(
+					sub.getUser(), target);
+			if (existing == null) {
+				sub.setFeed(target);
+				if (sub.getReadUpTo() != null) {
+					// the history of the target feed would show as unread,
+					// it was inserted before now. Subscriptions with status
+					// rows have no row for it either.
+					sub.setReadUpTo(now);
+				}
+				feedSubscriptionDAO.saveOrUpdate(sub);
+			} else {
+				// already subscribed to both
+				feedSubscriptionDAO.delete(sub);
+			}
+		}
+		return target;
+	}
+
 }
@@ -1,5 +1,6 @@
 package com.commafeed.backend.services;
 
+import java.util.Date;
 import java.util.List;
 
 import javax.ejb.ApplicationException;
@@ -74,9 +75,24 @@ public class FeedSubscriptionService {
 		sub.setCategory(category);
 		sub.setPosition(0);
 		sub.setTitle(FeedUtils.truncate(title, 128));
+
+		boolean readWatermarks = applicationSettingsService.get()
+				.isReadWatermarks();
+		if (newSubscription && readWatermarks) {
+			// the latest entries are unread
+			Date readUpTo = null;
+			for (FeedEntry entry : feedEntryDAO.findByFeed(feed, 0, 10)) {
+				Date inserted = entry.getInserted();
+				if (inserted != null
+						&& (readUpTo == null || inserted.before(readUpTo))) {
+					readUpTo = inserted;
+				}
+			}
+			sub.setReadUpTo(readUpTo == null ? new Date() : readUpTo);
+		}
 		feedSubscriptionDAO.saveOrUpdate(sub);
 
-		if (newSubscription) {
+		if (newSubscription && !readWatermarks) {
 			List<FeedEntryStatus> statuses = Lists.newArrayList();
 			List<FeedEntry> allEntries = feedEntryDAO.findByFeed(feed, 0, 10);
 			for (FeedEntry entry : allEntries) {
@@ -88,7 +104,7 @@ public class FeedSubscriptionService {
 			}
 			feedEntryStatusDAO.saveOrUpdate(statuses);
 		}
-		taskGiver.add(feed);
+		taskGiver.add(feed, user);
 		return feed;
 	}
 }
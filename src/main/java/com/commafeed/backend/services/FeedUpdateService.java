@@ -1,21 +1,27 @@
 package com.commafeed.backend.services;
 
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 
+import org.apache.commons.lang.mutable.MutableInt;
+
 import com.commafeed.backend.MetricsBean;
 import com.commafeed.backend.dao.FeedEntryDAO;
 import com.commafeed.backend.dao.FeedEntryStatusDAO;
 import com.commafeed.backend.dao.FeedSubscriptionDAO;
 import com.commafeed.backend.feeds.FeedUtils;
+import com.commafeed.backend.feeds.HtmlSanitizer;
 import com.commafeed.backend.model.Feed;
 import com.commafeed.backend.model.FeedEntry;
 import com.commafeed.backend.model.FeedEntryContent;
 import com.commafeed.backend.model.FeedEntryStatus;
 import com.commafeed.backend.model.FeedSubscription;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 
 @Stateless
@@ -33,42 +39,81 @@ public class FeedUpdateService {
 	@Inject
 	MetricsBean metricsBean;
 
-	public void updateEntry(Feed feed, FeedEntry entry,
-			List<FeedSubscription> subscriptions) {
-
-		FeedEntry foundEntry = FeedUtils.findEntry(
-				feedEntryDAO.findByGuid(entry.getGuid()), entry);
-
-		FeedEntry update = null;
-		if (foundEntry == null) {
-			FeedEntryContent content = entry.getContent();
-			content.setTitle(FeedUtils.truncate(
-					FeedUtils.handleContent(content.getTitle(), feed.getLink()),
-					2048));
-			content.setContent(FeedUtils.handleContent(content.getContent(),
-					feed.getLink()));
+	@Inject
+	ApplicationSettingsService applicationSettingsService;
 
-			entry.setInserted(Calendar.getInstance().getTime());
-			entry.getFeeds().add(feed);
+	/**
+	 * Inserts the new entries of a feed and links the stored ones to it, in a
+	 * single transaction. stored holds the stored entries with the same guids
+	 * by guid hash, looked up by the caller with their feeds initialized.
+	 * Returns the entries that were not yet linked to this feed and adds the
+	 * number of statuses written to statusCount
+	 */
+	public List<FeedEntry> updateEntries(Feed feed,
+			Collection<FeedEntry> entries,
+			ListMultimap<String, FeedEntry> stored,
+			List<FeedSubscription> subscriptions, MutableInt statusCount) {
+		// the feed may contain the same entry twice
+		ListMultimap<String, FeedEntry> known = ArrayListMultimap
+				.create(stored);
 
-			update = entry;
-		} else if (FeedUtils.findFeed(foundEntry.getFeeds(), feed) == null) {
-			foundEntry.getFeeds().add(feed);
-			update = foundEntry;
+		List<FeedEntry> updates = Lists.newArrayList();
+		for (FeedEntry entry : entries) {
+			FeedEntry foundEntry = FeedUtils.findEntry(
+					known.get(entry.getGuidHash()), entry);
+			if (foundEntry == null) {
+				// already cleaned if the transaction is retried
+				if (entry.getInserted() == null) {
+					FeedEntryContent content = entry.getContent();
+					content.setTitle(FeedUtils.truncate(HtmlSanitizer.sanitize(
+							content.getTitle(), feed.getLink()), 2048));
+					content.setContent(HtmlSanitizer.sanitize(
+							content.getContent(), feed.getLink()));
+					content.setRtl(FeedUtils.isRTL(content));
+					entry.setInserted(Calendar.getInstance().getTime());
+				}
+				entry.getFeeds().add(feed);
+				known.put(entry.getGuidHash(), entry);
+				updates.add(entry);
+			} else if (FeedUtils.findFeed(foundEntry.getFeeds(), feed) == null) {
+				foundEntry.getFeeds().add(feed);
+				updates.add(foundEntry);
+			}
 		}
 
-		if (update != null) {
-			List<FeedEntryStatus> statusUpdateList = Lists.newArrayList();
+		boolean watermarks = applicationSettingsService.get()
+				.isReadWatermarks();
+		List<FeedEntryStatus> statusUpdateList = Lists.newArrayList();
+		for (FeedEntry update : updates) {
+			int count = 0;
 			for (FeedSubscription sub : subscriptions) {
+				if (watermarks && !isBeforeWatermark(update, sub)) {
+					// unread from the watermark
+					continue;
+				}
 				FeedEntryStatus status = new FeedEntryStatus();
 				status.setEntry(update);
 				status.setSubscription(sub);
+				status.setRead(false);
 				statusUpdateList.add(status);
+				count++;
 			}
-			feedEntryDAO.saveOrUpdate(update);
-			feedEntryStatusDAO.saveOrUpdate(statusUpdateList);
-			metricsBean.entryUpdated(statusUpdateList.size());
+			metricsBean.entryUpdated(count);
 		}
+		feedEntryDAO.saveOrUpdate(updates);
+		feedEntryStatusDAO.saveOrUpdate(statusUpdateList);
+		statusCount.add(statusUpdateList.size());
+		return updates;
+	}
+
+	/**
+	 * True if the subscription has no watermark or if the entry was inserted
+	 * before it, an entry stored for another feed keeps its insertion date and
+	 * needs an unread row
+	 */
+	private boolean isBeforeWatermark(FeedEntry entry, FeedSubscription sub) {
+		return sub.getReadUpTo() == null
+				|| entry.getInserted().before(sub.getReadUpTo());
 	}
 
 }
@@ -2,12 +2,15 @@ package com.commafeed.backend.services;
 
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.time.DateUtils;
 
 import com.commafeed.backend.dao.FeedCategoryDAO;
 import com.commafeed.backend.dao.FeedEntryStatusDAO;
@@ -15,15 +18,23 @@ import com.commafeed.backend.dao.FeedSubscriptionDAO;
 import com.commafeed.backend.dao.UserDAO;
 import com.commafeed.backend.dao.UserRoleDAO;
 import com.commafeed.backend.dao.UserSettingsDAO;
+import com.commafeed.backend.feeds.FeedRefreshTaskGiver;
+import com.commafeed.backend.model.FeedSubscription;
 import com.commafeed.backend.model.User;
 import com.commafeed.backend.model.UserRole;
 import com.commafeed.backend.model.UserRole.Role;
-import com.commafeed.backend.model.UserSettings.ReadingOrder;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 @Stateless
 public class UserService {
 
+	/**
+	 * feeds of users that did not log in for that long may have been slowed
+	 * down, they are refreshed as soon as the user comes back
+	 */
+	private static final int IDLE_DAYS = 7;
+
 	@Inject
 	UserDAO userDAO;
 
@@ -45,6 +56,9 @@ public class UserService {
 	@Inject
 	PasswordEncryptionService encryptionService;
 
+	@Inject
+	FeedRefreshTaskGiver taskGiver;
+
 	public User login(String name, String password) {
 		if (name == null || password == null) {
 			return null;
@@ -55,8 +69,14 @@ public class UserService {
 			boolean authenticated = encryptionService.authenticate(password,
 					user.getPassword(), user.getSalt());
 			if (authenticated) {
-				user.setLastLogin(Calendar.getInstance().getTime());
+				Date now = Calendar.getInstance().getTime();
+				Date lastLogin = user.getLastLogin();
+				user.setLastLogin(now);
 				userDAO.saveOrUpdate(user);
+				if (lastLogin == null
+						|| lastLogin.before(DateUtils.addDays(now, -IDLE_DAYS))) {
+					promoteFeeds(user);
+				}
 				return user;
 			}
 		}
@@ -64,6 +84,14 @@ public class UserService {
 		return null;
 	}
 
+	private void promoteFeeds(User user) {
+		List<Long> feedIds = Lists.newArrayList();
+		for (FeedSubscription sub : feedSubscriptionDAO.findAll(user)) {
+			feedIds.add(sub.getFeed().getId());
+		}
+		taskGiver.promote(feedIds);
+	}
+
 	public User register(String name, String password, Collection<Role> roles) {
 		return register(name, password, null, roles);
 	}
@@ -90,8 +118,7 @@ public class UserService {
 	}
 
 	public void unregister(User user) {
-		feedEntryStatusDAO.delete(feedEntryStatusDAO.findAll(user, false,
-				ReadingOrder.desc, false));
+		feedEntryStatusDAO.delete(feedEntryStatusDAO.findByUser(user));
 		feedSubscriptionDAO.delete(feedSubscriptionDAO.findAll(user));
 		feedCategoryDAO.delete(feedCategoryDAO.findAll(user));
 		userSettingsDAO.delete(userSettingsDAO.findByUser(user));
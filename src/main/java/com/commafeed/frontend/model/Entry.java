@@ -8,6 +8,7 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import com.commafeed.backend.dao.FeedEntryStatusDAO;
 import com.commafeed.backend.feeds.FeedUtils;
 import com.commafeed.backend.model.FeedEntry;
 import com.commafeed.backend.model.FeedEntryStatus;
@@ -27,11 +28,16 @@ public class Entry implements Serializable {
 		Entry entry = new Entry();
 
 		FeedEntry feedEntry = status.getEntry();
-		entry.setId(String.valueOf(status.getId()));
+		if (status.getId() != null) {
+			entry.setId(String.valueOf(status.getId()));
+		} else {
+			entry.setId(FeedEntryStatusDAO.buildId(status.getSubscription(),
+					feedEntry));
+		}
 		entry.setGuid(feedEntry.getGuid());
 		entry.setTitle(feedEntry.getContent().getTitle());
 		entry.setContent(feedEntry.getContent().getContent());
-		entry.setRtl(FeedUtils.isRTL(feedEntry));
+		entry.setRtl(Boolean.TRUE.equals(feedEntry.getContent().getRtl()));
 		entry.setAuthor(feedEntry.getAuthor());
 		entry.setEnclosureUrl(status.getEntry().getContent().getEnclosureUrl());
 		entry.setEnclosureType(status.getEntry().getContent()
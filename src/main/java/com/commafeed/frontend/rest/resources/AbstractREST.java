@@ -24,6 +24,7 @@ import org.apache.wicket.protocol.http.servlet.ServletWebResponse;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.util.crypt.Base64;
 
+import com.commafeed.backend.HttpGetter;
 import com.commafeed.backend.MetricsBean;
 import com.commafeed.backend.StartupBean;
 import com.commafeed.backend.dao.FeedCategoryDAO;
@@ -35,8 +36,12 @@ import com.commafeed.backend.dao.UserDAO;
 import com.commafeed.backend.dao.UserRoleDAO;
 import com.commafeed.backend.dao.UserSettingsDAO;
 import com.commafeed.backend.feeds.FeedFetcher;
+import com.commafeed.backend.feeds.FeedParser;
 import com.commafeed.backend.feeds.FeedRefreshTaskGiver;
 import com.commafeed.backend.feeds.FeedRefreshUpdater;
+import com.commafeed.backend.feeds.FeedRefreshWorker;
+import com.commafeed.backend.feeds.FeedStateWriter;
+import com.commafeed.backend.feeds.KnownEntryFilter;
 import com.commafeed.backend.feeds.OPMLExporter;
 import com.commafeed.backend.feeds.OPMLImporter;
 import com.commafeed.backend.model.User;
@@ -120,6 +125,21 @@ public abstract class AbstractREST {
 	@Inject
 	FeedRefreshUpdater feedRefreshUpdater;
 
+	@Inject
+	FeedRefreshWorker feedRefreshWorker;
+
+	@Inject
+	FeedStateWriter feedStateWriter;
+
+	@Inject
+	FeedParser feedParser;
+
+	@Inject
+	KnownEntryFilter knownEntryFilter;
+
+	@Inject
+	HttpGetter httpGetter;
+
 	@PostConstruct
 	public void init() {
 		CommaFeedApplication app = CommaFeedApplication.get();
@@ -14,7 +14,9 @@ import javax.ws.rs.core.Response.Status;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.commafeed.backend.NodeRole;
 import com.commafeed.backend.StartupBean;
+import com.commafeed.backend.feeds.HtmlSanitizer;
 import com.commafeed.backend.model.ApplicationSettings;
 import com.commafeed.backend.model.User;
 import com.commafeed.backend.model.UserRole;
@@ -184,9 +186,32 @@ public class AdminREST extends AbstractResourceREST {
 		if (backlog) {
 			map.put("backlog", feedDAO.getUpdatableCount());
 		}
+		map.put("node", taskGiver.getNodeId());
+		map.put("role", NodeRole.get());
+		map.put("scheduled", taskGiver.getScheduledCount());
+		map.put("due", taskGiver.getDueCount());
+		map.put("refill", taskGiver.getRefillStatistics());
+		map.put("priority", taskGiver.getPriorityStatistics());
+		map.put("inFlight", feedRefreshWorker.getInFlightCount());
+		map.put("parseQueue", feedRefreshWorker.getQueueSize());
+		map.put("parser", feedParser.getStatistics());
 		map.put("queue", feedRefreshUpdater.getQueueSize());
+		map.put("updater", feedRefreshUpdater.getStatistics());
+		map.put("entryFilter", knownEntryFilter.getStatistics());
+		map.put("sanitizer", HtmlSanitizer.getStatistics());
+		map.put("feedStateWriter", feedStateWriter.getStatistics());
+		map.put("httpPool", httpGetter.getPoolStatistics());
+		map.put("asyncHttpPool", httpGetter.getAsyncPoolStatistics());
 		map.put("cache", metricsBean.getCacheStats());
 
 		return Response.ok(map).build();
 	}
+
+	@Path("/metrics/hosts")
+	@GET
+	@ApiOperation(value = "Per-host fetch statistics", notes = "Fetches in flight, deferred feeds, throttling count and waiting times of the busiest hosts")
+	public Response getHostMetrics(
+			@QueryParam("limit") @DefaultValue("50") int limit) {
+		return Response.ok(taskGiver.getHostStatistics(limit)).build();
+	}
 }
@@ -35,8 +35,7 @@ public class EntryREST extends AbstractResourceREST {
 		Preconditions.checkNotNull(req);
 		Preconditions.checkNotNull(req.getId());
 
-		feedEntryService.markEntry(getUser(), Long.valueOf(req.getId()),
-				req.isRead());
+		feedEntryService.markEntry(getUser(), req.getId(), req.isRead());
 
 		return Response.ok(Status.OK).build();
 	}
@@ -49,8 +48,7 @@ public class EntryREST extends AbstractResourceREST {
 		Preconditions.checkNotNull(req);
 		Preconditions.checkNotNull(req.getId());
 
-		feedEntryService.starEntry(getUser(), Long.valueOf(req.getId()),
-				req.isStarred());
+		feedEntryService.starEntry(getUser(), req.getId(), req.isStarred());
 
 		return Response.ok(Status.OK).build();
 	}
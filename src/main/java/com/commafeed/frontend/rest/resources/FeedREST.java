@@ -203,7 +203,7 @@ public class FeedREST extends AbstractResourceREST {
 		FeedSubscription sub = feedSubscriptionDAO.findById(getUser(),
 				req.getId());
 		if (sub != null) {
-			taskGiver.add(sub.getFeed());
+			taskGiver.add(sub.getFeed(), getUser());
 			return Response.ok(Status.OK).build();
 		}
 		return Response.ok(Status.NOT_FOUND).build();
@@ -81,7 +81,8 @@ public class PubSubHubbubCallbackREST {
 	public Response callback() {
 		try {
 			byte[] bytes = IOUtils.toByteArray(request.getInputStream());
-			FetchedFeed fetchedFeed = parser.parse(null, bytes);
+			FetchedFeed fetchedFeed = parser.parse(null, bytes,
+					request.getContentType());
 			String topic = fetchedFeed.getTopic();
 			if (topic != null) {
 				log.debug("content callback received for {}", topic);
@@ -0,0 +1,261 @@
+package com.commafeed.backend.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * Compares the write volume and the unread query latency of a status row per
+ * entry and subscription with a read watermark per subscription, on one feed
+ * with synthetic tables. Run with a jdbc url, user and password, the driver on
+ * the classpath, and optionally the number of subscribers, entries per day and
+ * days.
+ *
+ * Each subscriber has read everything but the last entries, some of which
+ * were read one by one, and starred a few entries.
+ */
+public class ReadStateBenchmark {
+
+	private static final int UNREAD = 20;
+	private static final double READ_AHEAD = 0.3;
+	private static final double STARRED = 0.01;
+	private static final int SAMPLE = 100;
+	private static final int PAGE = 20;
+
+	private static final String[] TABLES = { "bench_statuses",
+			"bench_exceptions", "bench_subscriptions", "bench_feed_entries",
+			"bench_entries" };
+
+	private static final String ROWS_UNREAD_COUNT = "select count(*) from bench_statuses st "
+			+ "where st.subscription_id = ? and st.read_status = 0";
+
+	private static final String ROWS_UNREAD_PAGE = "select e.id from bench_statuses st "
+			+ "join bench_entries e on e.id = st.entry_id "
+			+ "where st.subscription_id = ? and st.read_status = 0 order by e.updated desc";
+
+	private static final String WATERMARK_UNREAD = "from bench_entries e "
+			+ "join bench_feed_entries fe on fe.entry_id = e.id "
+			+ "join bench_subscriptions s on s.feed_id = fe.feed_id "
+			+ "where s.id = ? and ((s.read_up_to is not null and e.inserted >= s.read_up_to "
+			+ "and not exists (select 1 from bench_exceptions x where x.entry_id = e.id and x.subscription_id = s.id)) "
+			+ "or exists (select 1 from bench_exceptions x where x.entry_id = e.id and x.subscription_id = s.id and x.read_status = 0))";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out
+					.println("usage: url user password [subscribers] [entries per day] [days]");
+			return;
+		}
+		int subscribers = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		int perDay = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		int days = args.length > 5 ? Integer.parseInt(args[5]) : 7;
+		int entries = perDay * days;
+
+		Connection connection = DriverManager.getConnection(args[0], args[1],
+				args[2]);
+		try {
+			connection.setAutoCommit(false);
+			dropTables(connection);
+			createTables(connection);
+			insertEntries(connection, subscribers, entries, days);
+
+			long start = System.nanoTime();
+			long rows = insertStatuses(connection, subscribers, entries, true);
+			long rowsMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			long exceptions = insertStatuses(connection, subscribers, entries,
+					false);
+			long exceptionsMillis = (System.nanoTime() - start) / 1000000;
+
+			System.out.println(String.format(
+					"%d subscribers, %d entries over %d days", subscribers,
+					entries, days));
+			System.out.println(String.format(
+					"status rows: %d rows in %d ms, %d rows per day", rows,
+					rowsMillis, rows / days));
+			System.out.println(String.format(
+					"watermarks: %d rows in %d ms, %d rows per day",
+					exceptions, exceptionsMillis, exceptions / days));
+
+			for (int round = 0; round < 3; round++) {
+				System.out.println(String.format(
+						"round %d: unread count %.2f ms vs %.2f ms, first page %.2f ms vs %.2f ms",
+						round,
+						time(connection, ROWS_UNREAD_COUNT, subscribers, false),
+						time(connection, "select count(*) " + WATERMARK_UNREAD,
+								subscribers, false),
+						time(connection, ROWS_UNREAD_PAGE, subscribers, true),
+						time(connection, "select e.id " + WATERMARK_UNREAD
+								+ " order by e.updated desc", subscribers, true)));
+			}
+		} finally {
+			dropTables(connection);
+			connection.close();
+		}
+	}
+
+	private static void createTables(Connection connection)
+			throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement
+					.execute("create table bench_entries (id bigint primary key, inserted timestamp, updated timestamp)");
+			statement
+					.execute("create table bench_feed_entries (entry_id bigint not null, feed_id bigint not null, primary key (entry_id, feed_id))");
+			statement
+					.execute("create table bench_subscriptions (id bigint primary key, feed_id bigint not null, read_up_to timestamp null)");
+			for (String table : new String[] { "bench_statuses",
+					"bench_exceptions" }) {
+				statement
+						.execute("create table "
+								+ table
+								+ " (id bigint primary key, subscription_id bigint not null, entry_id bigint not null, read_status smallint not null, starred smallint not null)");
+				statement.execute("create index " + table + "_sub on " + table
+						+ " (subscription_id)");
+				statement.execute("create index " + table + "_entry on "
+						+ table + " (entry_id)");
+			}
+			statement
+					.execute("create index bench_feed_entries_feed on bench_feed_entries (feed_id)");
+			connection.commit();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static void dropTables(Connection connection) {
+		for (String table : TABLES) {
+			try {
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("drop table " + table);
+				} finally {
+					statement.close();
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				// the table does not exist
+				try {
+					connection.rollback();
+				} catch (SQLException e1) {
+					// nothing to roll back
+				}
+			}
+		}
+	}
+
+	private static void insertEntries(Connection connection,
+			int subscribers, int entries, int days) throws SQLException {
+		long now = System.currentTimeMillis();
+		long interval = days * 24l * 3600 * 1000 / entries;
+
+		PreparedStatement entry = connection
+				.prepareStatement("insert into bench_entries (id, inserted, updated) values (?, ?, ?)");
+		PreparedStatement link = connection
+				.prepareStatement("insert into bench_feed_entries (entry_id, feed_id) values (?, 1)");
+		try {
+			for (int i = 0; i < entries; i++) {
+				Timestamp date = new Timestamp(now - (entries - i) * interval);
+				entry.setLong(1, i + 1);
+				entry.setTimestamp(2, date);
+				entry.setTimestamp(3, date);
+				entry.addBatch();
+				link.setLong(1, i + 1);
+				link.addBatch();
+			}
+			entry.executeBatch();
+			link.executeBatch();
+		} finally {
+			entry.close();
+			link.close();
+		}
+
+		// the oldest unread entry of every subscriber
+		Timestamp readUpTo = new Timestamp(now
+				- Math.min(UNREAD, entries) * interval);
+		PreparedStatement sub = connection
+				.prepareStatement("insert into bench_subscriptions (id, feed_id, read_up_to) values (?, 1, ?)");
+		try {
+			for (int i = 0; i < subscribers; i++) {
+				sub.setLong(1, i + 1);
+				sub.setTimestamp(2, readUpTo);
+				sub.addBatch();
+			}
+			sub.executeBatch();
+		} finally {
+			sub.close();
+		}
+		connection.commit();
+	}
+
+	/**
+	 * Inserts a row per entry and subscriber, or only the rows that differ
+	 * from the watermark, and returns the number of rows
+	 */
+	private static long insertStatuses(Connection connection,
+			int subscribers, int entries, boolean allRows) throws SQLException {
+		Random random = new Random(42);
+		long rows = 0;
+		PreparedStatement statement = connection.prepareStatement("insert into "
+				+ (allRows ? "bench_statuses" : "bench_exceptions")
+				+ " (id, subscription_id, entry_id, read_status, starred) values (?, ?, ?, ?, ?)");
+		try {
+			for (int sub = 1; sub <= subscribers; sub++) {
+				for (int entry = 1; entry <= entries; entry++) {
+					boolean afterWatermark = entry > entries - UNREAD;
+					boolean read = !afterWatermark
+							|| random.nextDouble() < READ_AHEAD;
+					boolean starred = random.nextDouble() < STARRED;
+					if (allRows || starred || (read && afterWatermark)) {
+						statement.setLong(1, ++rows);
+						statement.setLong(2, sub);
+						statement.setLong(3, entry);
+						statement.setInt(4, read ? 1 : 0);
+						statement.setInt(5, starred ? 1 : 0);
+						statement.addBatch();
+						if (rows % 1000 == 0) {
+							statement.executeBatch();
+						}
+					}
+				}
+			}
+			statement.executeBatch();
+			connection.commit();
+		} finally {
+			statement.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Average milliseconds of the query for a sample of the subscribers
+	 */
+	private static double time(Connection connection, String sql,
+			int subscribers, boolean page) throws SQLException {
+		int sample = Math.min(SAMPLE, subscribers);
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			if (page) {
+				statement.setMaxRows(PAGE);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < sample; i++) {
+				statement.setLong(1, 1 + (long) i * subscribers / sample);
+				ResultSet rs = statement.executeQuery();
+				while (rs.next()) {
+					rs.getLong(1);
+				}
+				rs.close();
+			}
+			return (System.nanoTime() - start) / 1000000.0 / sample;
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.commafeed.backend.feeds;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.commafeed.backend.feeds.CharsetResolver.Resolution;
+import com.commafeed.backend.feeds.CharsetResolver.Source;
+
+/**
+ * Checks that documents in various encodings, served with right, wrong or
+ * missing charsets, are decoded back to their original text
+ */
+public class CharsetResolverTest {
+
+	private static final String FRENCH = "Les élèves ont été reçus à l'école, où ils ont déjeuné. Noël approche, les fêtes de fin d'année sont là.";
+	private static final String GERMAN = "Größere Änderungen für Übersetzungen: Straße, Bäcker, Müller und Söhne.";
+	private static final String RUSSIAN = "Съешь же ещё этих мягких французских булок, да выпей чаю. Широкая электрификация южных губерний даст мощный толчок подъёму сельского хозяйства.";
+	private static final String JAPANESE = "日本語のフィードです。今日は天気が良いので散歩に行きました。明日も晴れるといいですね。";
+	private static final String ASCII = "Plain ascii feed";
+
+	private static String document(String declaration, String text) {
+		String prolog = declaration == null ? "<?xml version=\"1.0\"?>"
+				: "<?xml version=\"1.0\" encoding=\"" + declaration + "\"?>";
+		StringBuilder sb = new StringBuilder(prolog);
+		sb.append("<rss version=\"2.0\"><channel>");
+		for (int i = 0; i < 20; i++) {
+			sb.append("<item><title>").append(text).append("</title></item>");
+		}
+		return sb.append("</channel></rss>").toString();
+	}
+
+	private Resolution check(String text, String encoding,
+			String contentType, String declaration) throws Exception {
+		String document = document(declaration, text);
+		byte[] bytes = document.getBytes(encoding);
+		Resolution resolution = CharsetResolver.resolve(bytes, contentType);
+		String decoded = IOUtils.toString(FeedUtils.newXmlReader(bytes,
+				resolution.getEncoding()));
+		Assert.assertEquals(encoding + " " + contentType + " " + declaration,
+				document, decoded);
+		return resolution;
+	}
+
+	@Test
+	public void bom() throws Exception {
+		Assert.assertEquals(Source.BOM,
+				check(FRENCH, "UTF-16", "text/xml; charset=ISO-8859-1",
+						"UTF-8").getSource());
+		byte[] utf8 = ("\uFEFF" + document(null, RUSSIAN)).getBytes("UTF-8");
+		Assert.assertEquals(Source.BOM, CharsetResolver.resolve(utf8, null)
+				.getSource());
+	}
+
+	@Test
+	public void header() throws Exception {
+		Assert.assertEquals(Source.HEADER,
+				check(RUSSIAN, "KOI8-R", "application/rss+xml; charset=koi8-r",
+						null).getSource());
+		Assert.assertEquals(Source.HEADER,
+				check(JAPANESE, "Shift_JIS", "text/xml;charset=\"Shift_JIS\"",
+						"shift_jis").getSource());
+		Assert.assertEquals(Source.HEADER,
+				check(GERMAN, "UTF-8", "text/xml; Charset=utf8", "UTF-8")
+						.getSource());
+	}
+
+	@Test
+	public void declaration() throws Exception {
+		Assert.assertEquals(Source.DECLARATION,
+				check(FRENCH, "ISO-8859-1", "text/xml", "ISO-8859-1")
+						.getSource());
+		Assert.assertEquals(Source.DECLARATION,
+				check(RUSSIAN, "windows-1251", null, "windows-1251")
+						.getSource());
+		Assert.assertEquals(Source.DECLARATION,
+				check(JAPANESE, "EUC-JP", "application/atom+xml", "EUC-JP")
+						.getSource());
+	}
+
+	@Test
+	public void detector() throws Exception {
+		// the header and the declaration disagree
+		Assert.assertEquals(Source.DETECTOR,
+				check(JAPANESE, "UTF-8", "text/xml; charset=ISO-8859-1",
+						"UTF-8").getSource());
+		// both missing
+		Assert.assertEquals(Source.DETECTOR,
+				check(RUSSIAN, "UTF-8", null, null).getSource());
+		Assert.assertEquals(Source.DETECTOR,
+				check(JAPANESE, "Shift_JIS", null, null).getSource());
+		// utf-8 declared but not well-formed, unknown charset
+		Assert.assertEquals(Source.DETECTOR,
+				check(FRENCH, "windows-1252", null, "UTF-8").getSource());
+		Assert.assertEquals(Source.DETECTOR,
+				check(RUSSIAN, "UTF-8", "text/xml; charset=x-unknown", null)
+						.getSource());
+	}
+
+	@Test
+	public void defaultEncoding() throws Exception {
+		Assert.assertEquals(Source.DEFAULT, check(ASCII, "UTF-8", null, null)
+				.getSource());
+	}
+
+	@Test
+	public void wrongHeader() throws Exception {
+		Assert.assertEquals(Source.DECLARATION,
+				check(FRENCH, "ISO-8859-1", "text/xml; charset=utf-8",
+						"ISO-8859-1").getSource());
+	}
+
+	@Test
+	public void feeds() throws Exception {
+		Assert.assertEquals(Source.DECLARATION, resolve("rss20.xml")
+				.getSource());
+		Assert.assertEquals(Source.BOM, resolve("rss20-bom.xml").getSource());
+		Resolution minimal = resolve("rss20-minimal.xml");
+		Assert.assertEquals(Source.DECLARATION, minimal.getSource());
+		Assert.assertEquals("windows-1252", minimal.getEncoding());
+	}
+
+	private Resolution resolve(String name) throws Exception {
+		byte[] bytes = IOUtils.toByteArray(getClass().getResourceAsStream(
+				"/feeds/" + name));
+		return CharsetResolver.resolve(bytes, null);
+	}
+}
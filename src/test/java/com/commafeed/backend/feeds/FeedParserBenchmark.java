@@ -0,0 +1,46 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Compares the throughput of the streaming parser and ROME on the streamed
+ * feeds of the test corpus. Run with the number of iterations as argument.
+ */
+public class FeedParserBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		List<byte[]> corpus = Lists.newArrayList();
+		for (String name : StaxFeedParserTest.STREAMED) {
+			corpus.add(StaxFeedParserTest.load(name));
+		}
+
+		StaxFeedParser stax = new StaxFeedParser();
+		FeedParser rome = new FeedParser();
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] xml : corpus) {
+					stax.parse(StaxFeedParserTest.newReader(xml));
+				}
+			}
+			long staxNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] xml : corpus) {
+					rome.parseWithRome(StaxFeedParserTest.newReader(xml));
+				}
+			}
+			long romeNanos = System.nanoTime() - start;
+
+			long documents = (long) iterations * corpus.size();
+			System.out.println(String.format(
+					"round %d: stax %d docs/s, rome %d docs/s", round,
+					documents * 1000000000l / staxNanos, documents
+							* 1000000000l / romeNanos));
+		}
+	}
+}
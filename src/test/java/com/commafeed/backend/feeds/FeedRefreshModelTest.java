@@ -0,0 +1,142 @@
+package com.commafeed.backend.feeds;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.commafeed.backend.model.Feed;
+import com.commafeed.backend.model.FeedEntry;
+import com.google.common.collect.Lists;
+
+/**
+ * Checks the statistics kept on the feeds and the bounds of the refresh
+ * intervals derived from them
+ */
+public class FeedRefreshModelTest {
+
+	private static final long MINUTE = DateUtils.MILLIS_PER_MINUTE;
+	private static final long HOUR = DateUtils.MILLIS_PER_HOUR;
+	private static final long DAY = DateUtils.MILLIS_PER_DAY;
+
+	private Date now = new Date();
+
+	private long interval(Feed feed) {
+		return FeedRefreshModel.buildDisabledUntil(feed, now).getTime()
+				- now.getTime();
+	}
+
+	private static List<FeedEntry> entries(Date last, long spacing, int count) {
+		List<FeedEntry> entries = Lists.newArrayList();
+		for (int i = 0; i < count; i++) {
+			FeedEntry entry = new FeedEntry();
+			entry.setUpdated(new Date(last.getTime() - i * spacing));
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	@Test
+	public void unknownFeedIsRefreshedDaily() {
+		Assert.assertEquals(DAY, interval(new Feed()));
+	}
+
+	@Test
+	public void intervalBounds() {
+		Feed busy = new Feed();
+		busy.setPostingRate(1000.0);
+		Assert.assertEquals(10 * MINUTE, interval(busy));
+
+		Feed slow = new Feed();
+		slow.setPostingRate(0.001);
+		Assert.assertEquals(DAY, interval(slow));
+
+		Feed dormant = new Feed();
+		dormant.setPostingRate(10.0);
+		dormant.setLastContentChange(DateUtils.addDays(now, -31));
+		Assert.assertEquals(DAY, interval(dormant));
+	}
+
+	@Test
+	public void hitRatioAdjustsInterval() {
+		Feed feed = new Feed();
+		feed.setPostingRate(0.5);
+		Assert.assertEquals(HOUR, interval(feed));
+
+		feed.setHitRatio(0.1);
+		Assert.assertEquals(2 * HOUR, interval(feed));
+
+		feed.setHitRatio(0.9);
+		Assert.assertEquals(HOUR / 2, interval(feed));
+	}
+
+	@Test
+	public void firstRefreshEstimatesRateFromEntries() {
+		Feed feed = new Feed();
+		FeedRefreshModel.recordRefresh(feed, entries(now, HOUR, 10), 10, now);
+
+		Assert.assertEquals(1.0, feed.getPostingRate(), 0.001);
+		Assert.assertEquals(1.0, feed.getHitRatio(), 0.001);
+		Assert.assertEquals(now, feed.getLastContentChange());
+		Assert.assertEquals(now, feed.getLastUpdateSuccess());
+	}
+
+	@Test
+	public void rateDecaysWithoutNewEntries() {
+		Feed feed = new Feed();
+		feed.setPostingRate(1.0);
+		feed.setHitRatio(1.0);
+		feed.setLastUpdateSuccess(DateUtils.addHours(now, -24));
+
+		FeedRefreshModel.recordRefresh(feed, null, 0, now);
+
+		// a day weighs 63% after a day
+		Assert.assertEquals(Math.exp(-1), feed.getPostingRate(), 0.001);
+		Assert.assertEquals(0.7, feed.getHitRatio(), 0.001);
+		Assert.assertNull(feed.getLastContentChange());
+	}
+
+	@Test
+	public void errorsBackOffFromLearnedInterval() {
+		Feed feed = new Feed();
+		feed.setPostingRate(0.5);
+		feed.setHitRatio(0.5);
+
+		feed.setErrorCount(1);
+		Assert.assertEquals(HOUR, FeedRefreshModel.getErrorInterval(feed, now));
+		feed.setErrorCount(3);
+		Assert.assertEquals(4 * HOUR,
+				FeedRefreshModel.getErrorInterval(feed, now));
+		feed.setErrorCount(1000);
+		Assert.assertEquals(7 * DAY,
+				FeedRefreshModel.getErrorInterval(feed, now));
+
+		FeedRefreshModel.recordError(feed);
+		Assert.assertEquals(0.35, feed.getHitRatio(), 0.001);
+		Assert.assertEquals(0.5, feed.getPostingRate(), 0.001);
+	}
+
+	@Test
+	public void minIntervalFollowsSubscriberActivity() {
+		Assert.assertEquals(10 * MINUTE,
+				FeedRefreshModel.getMinInterval(null, now));
+		Assert.assertEquals(10 * MINUTE, FeedRefreshModel.getMinInterval(
+				DateUtils.addDays(now, -1), now));
+		Assert.assertEquals(2 * HOUR, FeedRefreshModel.getMinInterval(
+				DateUtils.addDays(now, -8), now));
+		Assert.assertEquals(DAY, FeedRefreshModel.getMinInterval(
+				DateUtils.addDays(now, -31), now));
+	}
+
+	@Test
+	public void priorityBonusIsCapped() {
+		Assert.assertEquals(0, FeedRefreshModel.getPriorityBonus(1));
+		Assert.assertEquals(30000, FeedRefreshModel.getPriorityBonus(2));
+		Assert.assertEquals(5 * MINUTE,
+				FeedRefreshModel.getPriorityBonus(Integer.MAX_VALUE));
+		Assert.assertEquals(5 * MINUTE,
+				FeedRefreshModel.getShortestInterval());
+	}
+}
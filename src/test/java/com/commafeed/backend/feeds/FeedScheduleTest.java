@@ -0,0 +1,149 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Checks that the schedule always hands out the earliest due feeds, whatever
+ * the sequence of schedules, advances and removals
+ */
+public class FeedScheduleTest {
+
+	@Test
+	public void pollsInDueOrder() {
+		FeedSchedule schedule = new FeedSchedule();
+		schedule.schedule(1, 30);
+		schedule.schedule(2, 10);
+		schedule.schedule(3, 20);
+		schedule.schedule(4, 50);
+
+		Assert.assertEquals(10, schedule.peekDue());
+		Assert.assertEquals(3, schedule.getDueCount(30));
+		Assert.assertEquals(Lists.newArrayList(2L, 3L),
+				schedule.pollDue(100, 2));
+		Assert.assertEquals(Lists.newArrayList(1L), schedule.pollDue(40, 10));
+		Assert.assertEquals(1, schedule.size());
+		Assert.assertTrue(schedule.pollDue(40, 10).isEmpty());
+	}
+
+	@Test
+	public void rescheduleMovesBothWays() {
+		FeedSchedule schedule = new FeedSchedule();
+		schedule.schedule(1, 10);
+		schedule.schedule(2, 20);
+		schedule.schedule(3, 30);
+
+		schedule.schedule(1, 40);
+		schedule.schedule(3, 5);
+
+		Assert.assertEquals(3, schedule.size());
+		Assert.assertEquals(Lists.newArrayList(3L, 2L, 1L),
+				schedule.pollDue(100, 10));
+	}
+
+	@Test
+	public void advanceOnlyMovesEarlier() {
+		FeedSchedule schedule = new FeedSchedule();
+		schedule.schedule(1, 10);
+		schedule.schedule(2, 20);
+
+		schedule.advance(2, 30);
+		schedule.advance(3, 0);
+		Assert.assertEquals(2, schedule.size());
+		Assert.assertEquals(10, schedule.peekDue());
+
+		schedule.advance(2, 5);
+		Assert.assertEquals(Lists.newArrayList(2L), schedule.pollDue(5, 10));
+	}
+
+	@Test
+	public void removeKeepsOrder() {
+		FeedSchedule schedule = new FeedSchedule();
+		for (long id = 1; id <= 10; id++) {
+			schedule.schedule(id, id * 10);
+		}
+		schedule.remove(1);
+		schedule.remove(5);
+		schedule.remove(10);
+		schedule.remove(42);
+
+		Assert.assertEquals(7, schedule.size());
+		Assert.assertEquals(Lists.newArrayList(2L, 3L, 4L, 6L, 7L, 8L, 9L),
+				schedule.pollDue(1000, 100));
+		Assert.assertEquals(Long.MAX_VALUE, schedule.peekDue());
+	}
+
+	@Test
+	public void manyIdsRemovedAndScheduledAgain() {
+		FeedSchedule schedule = new FeedSchedule();
+		// ids sharing their low bits
+		for (long id = 0; id < 10000; id++) {
+			schedule.schedule(id << 20, id);
+		}
+		for (long id = 0; id < 10000; id += 2) {
+			schedule.remove(id << 20);
+		}
+		Assert.assertEquals(5000, schedule.size());
+
+		for (long id = 0; id < 10000; id++) {
+			schedule.advance(id << 20, -id);
+		}
+		for (long id = 0; id < 10000; id += 2) {
+			schedule.schedule(id << 20, 100000 + id);
+		}
+		Assert.assertEquals(10000, schedule.size());
+
+		List<Long> ids = schedule.pollDue(Long.MAX_VALUE, Integer.MAX_VALUE);
+		Assert.assertEquals(Long.valueOf(9999L << 20), ids.get(0));
+		Assert.assertEquals(Long.valueOf(1L << 20), ids.get(4999));
+		Assert.assertEquals(Long.valueOf(0), ids.get(5000));
+		Assert.assertEquals(Long.valueOf(9998L << 20), ids.get(9999));
+	}
+
+	@Test
+	public void randomOperationsMatchSortedDues() {
+		Random random = new Random(42);
+		FeedSchedule schedule = new FeedSchedule();
+		Map<Long, Long> expected = Maps.newHashMap();
+
+		// more than the initial capacity to grow the arrays
+		for (int i = 0; i < 20000; i++) {
+			long id = random.nextInt(3000);
+			long due = random.nextInt(100000);
+			switch (random.nextInt(3)) {
+			case 0:
+				schedule.schedule(id, due);
+				expected.put(id, due);
+				break;
+			case 1:
+				schedule.advance(id, due);
+				Long previous = expected.get(id);
+				if (previous != null && due < previous) {
+					expected.put(id, due);
+				}
+				break;
+			default:
+				schedule.remove(id);
+				expected.remove(id);
+			}
+		}
+		Assert.assertEquals(expected.size(), schedule.size());
+
+		List<Long> ids = schedule.pollDue(Long.MAX_VALUE, Integer.MAX_VALUE);
+		Assert.assertEquals(expected.size(), ids.size());
+		long previous = Long.MIN_VALUE;
+		for (Long id : ids) {
+			long due = expected.get(id);
+			Assert.assertTrue(due >= previous);
+			previous = due;
+		}
+		Assert.assertEquals(0, schedule.size());
+	}
+}
@@ -0,0 +1,134 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.commafeed.backend.feeds.HostLimiter.HostStatistics;
+import com.commafeed.backend.model.Feed;
+
+/**
+ * Checks the token bucket and the concurrency limit of each host, with the
+ * time given by the test
+ */
+public class HostLimiterTest {
+
+	private static Feed feed(String url) {
+		Feed feed = new Feed();
+		feed.setUrl(url);
+		return feed;
+	}
+
+	@Test
+	public void burstThenRefill() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(100, 3, 60);
+		long now = 1000000;
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(limiter.acquireOrDefer(
+					feed("http://example.com/" + i), now));
+		}
+		Feed deferred = feed("http://example.com/3");
+		Assert.assertFalse(limiter.acquireOrDefer(deferred, now));
+		Assert.assertEquals(1, limiter.getDeferredCount());
+
+		// one token per second
+		Assert.assertNull(limiter.pollDeferred(now + 999));
+		Assert.assertSame(deferred, limiter.pollDeferred(now + 1000));
+		Assert.assertEquals(0, limiter.getDeferredCount());
+		Assert.assertFalse(limiter.acquireOrDefer(
+				feed("http://example.com/4"), now + 1000));
+	}
+
+	@Test
+	public void bucketDoesNotExceedBurst() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(100, 2, 60);
+		long now = 1000000;
+
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://a.com/0"), now));
+		long later = now + 3600000;
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://a.com/1"), later));
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://a.com/2"), later));
+		Assert.assertFalse(limiter.acquireOrDefer(feed("http://a.com/3"), later));
+	}
+
+	@Test
+	public void concurrencyLimit() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(2, 100, 6000);
+		long now = 1000000;
+
+		Feed first = feed("http://example.com/0");
+		Assert.assertTrue(limiter.acquireOrDefer(first, now));
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://example.com/1"),
+				now));
+		Feed third = feed("http://example.com/2");
+		Assert.assertFalse(limiter.acquireOrDefer(third, now));
+		Assert.assertNull(limiter.pollDeferred(now + 60000));
+
+		limiter.release(first);
+		Assert.assertSame(third, limiter.pollDeferred(now + 60000));
+	}
+
+	@Test
+	public void hostsAreIndependent() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(1, 1, 1);
+		long now = 1000000;
+
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://a.com/feed"), now));
+		Assert.assertTrue(limiter.acquireOrDefer(feed("http://B.com/feed"), now));
+		Assert.assertFalse(limiter.acquireOrDefer(feed("http://b.com/other"),
+				now));
+	}
+
+	@Test
+	public void invalidLimitsKeepDefaults() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(0, -1, 0);
+		long now = 1000000;
+
+		for (int i = 0; i < HostLimiter.DEFAULT_BURST; i++) {
+			Feed feed = feed("http://example.com/" + i);
+			Assert.assertTrue(limiter.acquireOrDefer(feed, now));
+			limiter.release(feed);
+		}
+		Assert.assertFalse(limiter.acquireOrDefer(feed("http://example.com/x"),
+				now));
+	}
+
+	@Test
+	public void statisticsAndEviction() {
+		HostLimiter limiter = new HostLimiter();
+		limiter.setLimits(1, 1, 60);
+		long now = System.currentTimeMillis();
+
+		Feed busy = feed("http://busy.com/0");
+		Assert.assertTrue(limiter.acquireOrDefer(busy, now));
+		Assert.assertFalse(limiter.acquireOrDefer(feed("http://busy.com/1"),
+				now - 5000));
+		Feed idle = feed("http://idle.com/0");
+		Assert.assertTrue(limiter.acquireOrDefer(idle, now));
+		limiter.release(idle);
+
+		List<HostStatistics> stats = limiter.getStatistics(10);
+		Assert.assertEquals(2, stats.size());
+		HostStatistics first = stats.get(0);
+		Assert.assertEquals("busy.com", first.getHost());
+		Assert.assertEquals(1, first.getInFlight());
+		Assert.assertEquals(1, first.getQueued());
+		Assert.assertEquals(1, first.getThrottled());
+		Assert.assertTrue(first.getOldestWaitMillis() >= 5000);
+		Assert.assertTrue(first.getMaxWaitMillis() >= 5000);
+		Assert.assertEquals(1, limiter.getStatistics(1).size());
+
+		// the idle host is dropped once its bucket is full again
+		limiter.evictIdle(now + 500);
+		Assert.assertEquals(2, limiter.getStatistics(10).size());
+		limiter.evictIdle(now + 1000);
+		Assert.assertEquals(1, limiter.getStatistics(10).size());
+	}
+}
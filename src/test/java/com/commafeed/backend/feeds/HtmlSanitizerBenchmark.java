@@ -0,0 +1,40 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+
+/**
+ * Compares the sanitizer with building the whitelist and cleaning every
+ * content, on the contents of the test corpus. Run with the number of
+ * iterations as argument.
+ */
+public class HtmlSanitizerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		List<String> corpus = HtmlSanitizerTest.corpus();
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (String content : corpus) {
+					HtmlSanitizer.sanitize(content, "http://www.example.com/");
+				}
+			}
+			long sanitizerNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (String content : corpus) {
+					HtmlSanitizerTest.clean(content);
+				}
+			}
+			long cleanNanos = System.nanoTime() - start;
+
+			long contents = (long) iterations * corpus.size();
+			System.out.println(String.format(
+					"round %d: sanitizer %d contents/s, jsoup %d contents/s",
+					round, contents * 1000000000l / sanitizerNanos, contents
+							* 1000000000l / cleanNanos));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.commafeed.backend.feeds;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document.OutputSettings;
+import org.jsoup.nodes.Entities.EscapeMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.commafeed.backend.model.FeedEntry;
+import com.google.common.collect.Lists;
+
+/**
+ * Checks that the sanitizer gives the same result as cleaning every content
+ * with jsoup
+ */
+public class HtmlSanitizerTest {
+
+	private static final String BASE_URI = "http://www.example.com/";
+
+	/**
+	 * What was done for every content before
+	 */
+	static String clean(String content) {
+		if (StringUtils.isBlank(content)) {
+			return content;
+		}
+		OutputSettings settings = new OutputSettings().escapeMode(
+				EscapeMode.base).prettyPrint(false);
+		return Jsoup.clean(content, BASE_URI, HtmlSanitizer.buildWhitelist(),
+				settings);
+	}
+
+	/**
+	 * Titles and contents of the test feeds and an html post
+	 */
+	static List<String> corpus() throws Exception {
+		List<String> corpus = Lists.newArrayList();
+		FeedParser parser = new FeedParser();
+		for (String name : StaxFeedParserTest.STREAMED) {
+			FetchedFeed feed = parser.parse(BASE_URI,
+					StaxFeedParserTest.load(name));
+			for (FeedEntry entry : feed.getEntries()) {
+				corpus.add(entry.getContent().getTitle());
+				if (entry.getContent().getContent() != null) {
+					corpus.add(entry.getContent().getContent());
+				}
+			}
+		}
+		corpus.add(loadPost());
+		return corpus;
+	}
+
+	static String loadPost() throws IOException {
+		return IOUtils.toString(HtmlSanitizerTest.class
+				.getResourceAsStream("/html/post.html"), "UTF-8");
+	}
+
+	@Test
+	public void corpusUnchanged() throws Exception {
+		for (String content : corpus()) {
+			Assert.assertEquals(content, clean(content),
+					HtmlSanitizer.sanitize(content, BASE_URI));
+		}
+	}
+
+	@Test
+	public void plainText() {
+		Assert.assertTrue(HtmlSanitizer.isUnchangedText("Plain title"));
+		Assert.assertTrue(HtmlSanitizer
+				.isUnchangedText("\u65E5\u672C\u8A9E \uD83D\uDE00"));
+		Assert.assertFalse(HtmlSanitizer.isUnchangedText("Caf\u00E9"));
+		Assert.assertFalse(HtmlSanitizer.isUnchangedText(" padded"));
+		Assert.assertFalse(HtmlSanitizer.isUnchangedText("a &amp; b"));
+		Assert.assertFalse(HtmlSanitizer.isUnchangedText("<b>bold</b>"));
+	}
+
+	@Test
+	public void randomText() {
+		String pool = "ab \t\n\r<>&\"'=/;\u0000\u00A0\u00E9\u00FF\u0100\u2003\u3000\u65E5\uD83D\uDE00";
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = 1 + random.nextInt(12);
+			for (int j = 0; j < length; j++) {
+				sb.append(pool.charAt(random.nextInt(pool.length())));
+			}
+			String content = sb.toString();
+			Assert.assertEquals(content, clean(content),
+					HtmlSanitizer.sanitize(content, BASE_URI));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.commafeed.backend.feeds;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commafeed.backend.dao.FeedEntryDAO;
+import com.commafeed.backend.feeds.KnownEntryFilter.FilterStatistics;
+import com.google.common.collect.Lists;
+
+/**
+ * Checks that the filter loads the stored hashes page by page, never reports
+ * a stored entry as new and keeps up with the entries inserted later
+ */
+public class KnownEntryFilterTest {
+
+	private KnownEntryFilter filter;
+	private List<Object[]> rows;
+	private List<Long> requestedIds;
+
+	@Before
+	public void init() {
+		rows = Lists.newArrayList();
+		requestedIds = Lists.newArrayList();
+		filter = new KnownEntryFilter();
+		filter.feedEntryDAO = new FeedEntryDAO() {
+			@Override
+			public long getCount() {
+				return rows.size();
+			}
+
+			@Override
+			public List<Object[]> findGuidHashes(long afterId, int count) {
+				requestedIds.add(afterId);
+				List<Object[]> page = Lists.newArrayList();
+				for (Object[] row : rows) {
+					if ((Long) row[0] > afterId && page.size() < count) {
+						page.add(row);
+					}
+				}
+				return page;
+			}
+		};
+	}
+
+	private void store(long from, long to) {
+		for (long id = from; id <= to; id++) {
+			rows.add(new Object[] { id, "hash" + id });
+		}
+	}
+
+	@Test
+	public void everyEntryIsLookedUpUntilLoaded() {
+		Assert.assertTrue(filter.mightContain("anything"));
+		filter.confirm(false);
+		Assert.assertFalse(filter.getStatistics().isReady());
+		Assert.assertEquals(0, filter.getStatistics().getLookups());
+	}
+
+	@Test
+	public void loadedHashesAreKnown() {
+		store(1, 25000);
+		filter.sync();
+
+		// three pages and an empty one
+		Assert.assertEquals(Lists.newArrayList(0L, 10000L, 20000L),
+				requestedIds);
+		for (long id = 1; id <= 25000; id++) {
+			Assert.assertTrue(filter.mightContain("hash" + id));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("new" + i)) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue(falsePositives < 200);
+
+		FilterStatistics stats = filter.getStatistics();
+		Assert.assertTrue(stats.isReady());
+		Assert.assertEquals(1000000, stats.getCapacity());
+		Assert.assertEquals(25000, stats.getInsertions(), 10);
+		Assert.assertEquals(10000 - falsePositives, stats.getSkipped());
+	}
+
+	@Test
+	public void syncRereadsRecentIds() {
+		store(1, 5000);
+		filter.sync();
+		store(5001, 5100);
+		requestedIds.clear();
+		filter.sync();
+
+		// ids may be committed out of order
+		Assert.assertEquals(Long.valueOf(4000), requestedIds.get(0));
+		Assert.assertTrue(filter.mightContain("hash5100"));
+	}
+
+	@Test
+	public void insertedEntriesAreKnown() {
+		filter.sync();
+		Assert.assertFalse(filter.mightContain("hash1"));
+		filter.put("hash1");
+		Assert.assertTrue(filter.mightContain("hash1"));
+
+		filter.confirm(true);
+		filter.confirm(false);
+		FilterStatistics stats = filter.getStatistics();
+		Assert.assertEquals(2, stats.getLookups());
+		Assert.assertEquals(1, stats.getFalsePositives());
+	}
+}
@@ -0,0 +1,103 @@
+package com.commafeed.backend.feeds;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.commafeed.backend.model.FeedEntry;
+
+/**
+ * Checks that the streaming parser gives the same result as ROME on the feeds
+ * of src/test/resources/feeds
+ */
+public class StaxFeedParserTest {
+
+	static final String[] STREAMED = { "rss20.xml", "rss20-minimal.xml",
+			"rss20-bom.xml", "rss10.xml", "atom10.xml" };
+	static final String[] FALLBACK = { "rss091.xml", "atom10-xhtml.xml" };
+
+	/**
+	 * Dates missing from the feed are set to the time of the parsing
+	 */
+	private static final long NOW_TOLERANCE = 60000;
+
+	static byte[] load(String name) throws IOException {
+		return IOUtils.toByteArray(StaxFeedParserTest.class
+				.getResourceAsStream("/feeds/" + name));
+	}
+
+	static Reader newReader(byte[] xml) throws IOException {
+		return FeedUtils.newXmlReader(xml, CharsetResolver.resolve(xml, null)
+				.getEncoding());
+	}
+
+	@Test
+	public void sameResultAsRome() throws Exception {
+		for (String name : STREAMED) {
+			byte[] xml = load(name);
+			FetchedFeed streamed = new StaxFeedParser().parse(newReader(xml));
+			Assert.assertNotNull(name + " should be streamed", streamed);
+			assertSame(name, new FeedParser().parseWithRome(newReader(xml)),
+					streamed);
+		}
+	}
+
+	@Test
+	public void fallbackToRome() throws Exception {
+		for (String name : FALLBACK) {
+			Assert.assertNull(name + " should fall back to ROME",
+					new StaxFeedParser().parse(newReader(load(name))));
+		}
+	}
+
+	@Test
+	public void statistics() throws Exception {
+		FeedParser parser = new FeedParser();
+		for (String name : STREAMED) {
+			parser.parse("http://www.example.com/feed", load(name));
+		}
+		for (String name : FALLBACK) {
+			parser.parse("http://www.example.com/feed", load(name));
+		}
+		Assert.assertEquals(STREAMED.length, parser.getStatistics()
+				.getStreamed());
+		Assert.assertEquals(FALLBACK.length, parser.getStatistics()
+				.getFallbacks());
+	}
+
+	private void assertSame(String name, FetchedFeed expected,
+			FetchedFeed actual) {
+		Assert.assertEquals(name, expected.getTitle(), actual.getTitle());
+		Assert.assertEquals(name, expected.getHub(), actual.getHub());
+		Assert.assertEquals(name, expected.getTopic(), actual.getTopic());
+		Assert.assertEquals(name, expected.getFeed().getLink(), actual
+				.getFeed().getLink());
+
+		List<FeedEntry> expectedEntries = expected.getEntries();
+		List<FeedEntry> actualEntries = actual.getEntries();
+		Assert.assertEquals(name, expectedEntries.size(), actualEntries.size());
+		for (int i = 0; i < expectedEntries.size(); i++) {
+			FeedEntry e = expectedEntries.get(i);
+			FeedEntry a = actualEntries.get(i);
+			String message = name + " entry " + e.getGuid();
+			Assert.assertEquals(message, e.getGuid(), a.getGuid());
+			Assert.assertEquals(message, e.getGuidHash(), a.getGuidHash());
+			Assert.assertEquals(message, e.getUrl(), a.getUrl());
+			Assert.assertEquals(message, e.getAuthor(), a.getAuthor());
+			Assert.assertEquals(message, e.getUpdated().getTime(), a
+					.getUpdated().getTime(), NOW_TOLERANCE);
+			Assert.assertEquals(message, e.getContent().getTitle(), a
+					.getContent().getTitle());
+			Assert.assertEquals(message, e.getContent().getContent(), a
+					.getContent().getContent());
+			Assert.assertEquals(message, e.getContent().getEnclosureUrl(), a
+					.getContent().getEnclosureUrl());
+			Assert.assertEquals(message, e.getContent().getEnclosureType(), a
+					.getContent().getEnclosureType());
+		}
+	}
+}
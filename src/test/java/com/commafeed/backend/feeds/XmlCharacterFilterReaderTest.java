@@ -0,0 +1,77 @@
+package com.commafeed.backend.feeds;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class XmlCharacterFilterReaderTest {
+
+	private static final String EMOJI = "\uD83D\uDE00";
+
+	private String filter(String xml) throws IOException {
+		return IOUtils.toString(new XmlCharacterFilterReader(new StringReader(
+				xml)));
+	}
+
+	/**
+	 * Reads with a buffer of the given size
+	 */
+	private String filter(String xml, int size) throws IOException {
+		Reader reader = new XmlCharacterFilterReader(new StringReader(xml));
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[size];
+		int read;
+		while ((read = reader.read(buffer, 0, size)) != -1) {
+			sb.append(buffer, 0, read);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void leadingGarbage() throws IOException {
+		Assert.assertEquals("<rss/>", filter("\uFEFF \r\n garbage<rss/>"));
+		Assert.assertEquals("", filter("no tag at all"));
+		Assert.assertEquals("", filter(""));
+	}
+
+	@Test
+	public void invalidCharacters() throws IOException {
+		Assert.assertEquals("<a>\tb\r\nc</a>",
+				filter("<a>\u0000\t\u0001b\r\n\u001Fc\uFFFE\uFFFF</a>"));
+	}
+
+	@Test
+	public void surrogatePairs() throws IOException {
+		Assert.assertEquals("<a>" + EMOJI + "</a>", filter("<a>" + EMOJI
+				+ "</a>"));
+		// lone surrogates
+		Assert.assertEquals("<a>xy</a>", filter("<a>x\uD83Dy\uDE00</a>"));
+		Assert.assertEquals("<a>", filter("<a>\uD83D"));
+		Assert.assertEquals("<a>" + EMOJI, filter("<a>\uDE00" + EMOJI));
+	}
+
+	@Test
+	public void bufferBoundaries() throws IOException {
+		// pairs across the internal buffer and the caller's buffer
+		String xml = "<a>" + StringUtils.repeat("x", 8189) + EMOJI
+				+ StringUtils.repeat(EMOJI + "\u0000y", 5000) + "</a>";
+		String expected = xml.replace("\u0000", "");
+		for (int size : new int[] { 1, 2, 3, 7, 8192, 20000 }) {
+			Assert.assertEquals("buffer of " + size, expected,
+					filter(xml, size));
+		}
+
+		Reader reader = new XmlCharacterFilterReader(new StringReader(xml));
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1) {
+			sb.append((char) c);
+		}
+		Assert.assertEquals(expected, sb.toString());
+	}
+}
@@ -0,0 +1,178 @@
+package com.commafeed.backend.services;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang.mutable.MutableInt;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commafeed.backend.MetricsBean;
+import com.commafeed.backend.dao.FeedEntryDAO;
+import com.commafeed.backend.dao.FeedEntryStatusDAO;
+import com.commafeed.backend.model.AbstractModel;
+import com.commafeed.backend.model.ApplicationSettings;
+import com.commafeed.backend.model.Feed;
+import com.commafeed.backend.model.FeedEntry;
+import com.commafeed.backend.model.FeedEntryContent;
+import com.commafeed.backend.model.FeedEntryStatus;
+import com.commafeed.backend.model.FeedSubscription;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+
+/**
+ * Checks which status rows are written for the entries of a feed, with and
+ * without read watermarks
+ */
+public class FeedUpdateServiceTest {
+
+	private FeedUpdateService service;
+	private ApplicationSettings settings;
+	private List<FeedEntryStatus> statuses;
+
+	private Date now = new Date();
+	private Feed feed;
+	private FeedSubscription watermarked;
+	private FeedSubscription withRows;
+
+	@Before
+	public void init() {
+		settings = new ApplicationSettings();
+		settings.setReadWatermarks(true);
+		statuses = Lists.newArrayList();
+
+		service = new FeedUpdateService();
+		service.metricsBean = new MetricsBean();
+		service.applicationSettingsService = new ApplicationSettingsService() {
+			@Override
+			public ApplicationSettings get() {
+				return settings;
+			}
+		};
+		service.feedEntryDAO = new FeedEntryDAO() {
+			@Override
+			public void saveOrUpdate(Collection<? extends AbstractModel> models) {
+			}
+		};
+		service.feedEntryStatusDAO = new FeedEntryStatusDAO() {
+			@Override
+			public void saveOrUpdate(Collection<? extends AbstractModel> models) {
+				for (AbstractModel model : models) {
+					statuses.add((FeedEntryStatus) model);
+				}
+			}
+		};
+
+		feed = feed(1L);
+		watermarked = new FeedSubscription();
+		watermarked.setId(10L);
+		watermarked.setFeed(feed);
+		watermarked.setReadUpTo(DateUtils.addHours(now, -1));
+		withRows = new FeedSubscription();
+		withRows.setId(11L);
+		withRows.setFeed(feed);
+	}
+
+	private static Feed feed(Long id) {
+		Feed feed = new Feed();
+		feed.setId(id);
+		return feed;
+	}
+
+	private static FeedEntry entry(String guid) {
+		FeedEntry entry = new FeedEntry();
+		entry.setGuid(guid);
+		entry.setGuidHash(guid);
+		entry.setUrl("http://example.com/" + guid);
+		entry.setContent(new FeedEntryContent());
+		return entry;
+	}
+
+	private List<FeedEntry> update(List<FeedEntry> entries,
+			ListMultimap<String, FeedEntry> stored, MutableInt count) {
+		return service.updateEntries(feed, entries, stored,
+				Lists.newArrayList(watermarked, withRows), count);
+	}
+
+	@Test
+	public void newEntryIsUnreadFromWatermark() {
+		MutableInt count = new MutableInt();
+		List<FeedEntry> updates = update(Lists.newArrayList(entry("new")),
+				ArrayListMultimap.<String, FeedEntry> create(), count);
+
+		Assert.assertEquals(1, updates.size());
+		Assert.assertEquals(1, statuses.size());
+		Assert.assertSame(withRows, statuses.get(0).getSubscription());
+		Assert.assertEquals(1, count.intValue());
+	}
+
+	@Test
+	public void sharedEntryBeforeWatermarkGetsUnreadRow() {
+		FeedEntry shared = entry("shared");
+		shared.setId(100L);
+		shared.setInserted(DateUtils.addDays(now, -1));
+		shared.getFeeds().add(feed(2L));
+		ListMultimap<String, FeedEntry> stored = ArrayListMultimap.create();
+		stored.put(shared.getGuidHash(), shared);
+
+		MutableInt count = new MutableInt();
+		List<FeedEntry> updates = update(Lists.newArrayList(entry("shared")),
+				stored, count);
+
+		Assert.assertEquals(1, updates.size());
+		Assert.assertSame(shared, updates.get(0));
+		Assert.assertEquals(2, shared.getFeeds().size());
+		Assert.assertEquals(2, statuses.size());
+		for (FeedEntryStatus status : statuses) {
+			Assert.assertSame(shared, status.getEntry());
+			Assert.assertFalse(status.isRead());
+		}
+		Assert.assertEquals(2, count.intValue());
+	}
+
+	@Test
+	public void sharedEntryAfterWatermarkNeedsNoRow() {
+		FeedEntry shared = entry("shared");
+		shared.setId(100L);
+		shared.setInserted(DateUtils.addMinutes(now, -5));
+		shared.getFeeds().add(feed(2L));
+		ListMultimap<String, FeedEntry> stored = ArrayListMultimap.create();
+		stored.put(shared.getGuidHash(), shared);
+
+		update(Lists.newArrayList(entry("shared")), stored, new MutableInt());
+
+		Assert.assertEquals(1, statuses.size());
+		Assert.assertSame(withRows, statuses.get(0).getSubscription());
+	}
+
+	@Test
+	public void everySubscriptionGetsRowsWithoutWatermarks() {
+		settings.setReadWatermarks(false);
+		MutableInt count = new MutableInt();
+		update(Lists.newArrayList(entry("a"), entry("b")),
+				ArrayListMultimap.<String, FeedEntry> create(), count);
+
+		Assert.assertEquals(4, statuses.size());
+		Assert.assertEquals(4, count.intValue());
+	}
+
+	@Test
+	public void entryAlreadyLinkedIsSkipped() {
+		FeedEntry linked = entry("linked");
+		linked.setId(100L);
+		linked.setInserted(DateUtils.addDays(now, -1));
+		linked.getFeeds().add(feed);
+		ListMultimap<String, FeedEntry> stored = ArrayListMultimap.create();
+		stored.put(linked.getGuidHash(), linked);
+
+		List<FeedEntry> updates = update(Lists.newArrayList(entry("linked")),
+				stored, new MutableInt());
+
+		Assert.assertTrue(updates.isEmpty());
+		Assert.assertTrue(statuses.isEmpty());
+	}
+}